@@ -0,0 +1,156 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.DirectoryFileStore;
+import bgu.spl.net.impl.tftp.FileStore;
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.PublicResources;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Checks that a steady DATA/ACK exchange allocates nothing per round trip,
+ * with the allocation counter of the current thread. Not a JMH benchmark, run
+ * it from the server directory after package:
+ * java -cp ../benchmarks/target/benchmarks.jar bgu.spl.net.bench.AllocationCheck
+ * It exits with 1 if a check allocates more than MAX_BYTES_PER_ROUND_TRIP.
+ * <ul>
+ * <li>codec: a DATA packet and its ACK framed by the decoder, a buffer at a
+ * time.</li>
+ * <li>protocol: the ACKs of an RRQ framed by the decoder and processed by
+ * TftpProtocol, which sends the next DATA packet. The request itself and the
+ * last ACK, that ends the transfer, are not counted. The file is in the
+ * server's Files directory, like the files it serves: a MemoryFileStore reads
+ * a packet per block.</li>
+ * </ul>
+ */
+public class AllocationCheck {
+    private static final int ROUND_TRIPS = 10_000; // measured in a run, warm-up runs come first
+    private static final int WARMUP_RUNS = 20; // so the measured code is compiled
+    // under a byte: something allocated once in a run, not per packet
+    private static final double MAX_BYTES_PER_ROUND_TRIP = 1;
+    private static final String FILENAME = "allocation-check.bin";
+    private static final int LAST_BLOCK_SIZE = 100; // of the file, block ROUND_TRIPS + 1
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final TftpEncoderDecoder decoder = new TftpEncoderDecoder();
+    private final ByteBuffer in = ByteBuffer.allocate(TftpEncoderDecoder.MAX_DATA_PACKET + 6);
+    private final byte[] payload = Packets.randomBytes(TftpEncoderDecoder.MAX_DATA_PACKET);
+    private final StubConnections connections = new StubConnections();
+    private final TftpProtocol protocol = new TftpProtocol();
+    private final Consumer<byte[]> toProtocol = protocol::process;
+    private final Consumer<byte[]> ignore = packet -> {
+    };
+    private final byte[] rrq = Packets.request(OpCodes.RRQ, FILENAME);
+    private byte[][] data; // one packet per block number, built before measuring
+
+    public static void main(String[] args) throws IOException {
+        AllocationCheck check = new AllocationCheck();
+        boolean passed = true;
+
+        check.setup();
+        passed &= report("codec", check.measure(check::codecRoundTrips));
+        passed &= report("protocol", check.measure(check::protocolRoundTrips));
+        check.tearDown();
+
+        if (!passed)
+            System.exit(1);
+    }
+
+    private void setup() throws IOException {
+        PublicResources.useFileStore(new DirectoryFileStore("Files"));
+
+        // the RRQ sends block 1, the measured ACKs the rest
+        try (FileStore.Upload upload = PublicResources.fileStore.create(FILENAME)) {
+            upload.write(ByteBuffer.wrap(
+                    Packets.randomBytes(ROUND_TRIPS * TftpEncoderDecoder.MAX_DATA_PACKET + LAST_BLOCK_SIZE)));
+            upload.publish();
+        }
+
+        data = new byte[ROUND_TRIPS + 1][]; // by block number
+
+        for (int i = 1; i < data.length; i++)
+            data[i] = Packets.data((short) i, payload, 0, payload.length);
+
+        protocol.start(1, connections);
+        protocol.process(Packets.request(OpCodes.LOGRQ, "allocation-check"));
+    }
+
+    private void tearDown() throws IOException {
+        protocol.process(OpCodes.DISC.getBytes());
+        protocol.onClose();
+        PublicResources.fileStore.delete(FILENAME);
+        PublicResources.timer.close();
+    }
+
+    /**
+     * Run a check until it is compiled, then once more.
+     *
+     * @param roundTrips runs ROUND_TRIPS round trips, and returns the bytes
+     *                   they allocated.
+     * @return the bytes allocated per round trip, in the last run.
+     */
+    private double measure(LongSupplier roundTrips) {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            roundTrips.getAsLong();
+
+        return roundTrips.getAsLong() / (double) ROUND_TRIPS;
+    }
+
+    private long codecRoundTrips() {
+        long before = allocatedBytes();
+
+        for (int block = 1; block <= ROUND_TRIPS; block++) {
+            frame(data[block], ignore);
+            frame(TftpEncoderDecoder.ackPacket((short) block), ignore);
+        }
+
+        return allocatedBytes() - before;
+    }
+
+    /**
+     * A whole RRQ, only its steady part is counted.
+     */
+    private long protocolRoundTrips() {
+        protocol.process(rrq);
+
+        long before = allocatedBytes();
+
+        for (int i = 0; i < ROUND_TRIPS; i++)
+            frame(TftpEncoderDecoder.ackPacket(connections.lastBlock), toProtocol);
+
+        long allocated = allocatedBytes() - before;
+
+        if (connections.lastDataSize != LAST_BLOCK_SIZE)
+            throw new IllegalStateException("the protocol did not send the whole file");
+
+        frame(TftpEncoderDecoder.ackPacket(connections.lastBlock), toProtocol); // ends the transfer
+
+        return allocated;
+    }
+
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void frame(byte[] packet, Consumer<byte[]> out) {
+        in.clear();
+        in.put(packet);
+        in.flip();
+        decoder.decode(in, out);
+    }
+
+    private static boolean report(String check, double bytesPerRoundTrip) {
+        boolean passed = bytesPerRoundTrip <= MAX_BYTES_PER_ROUND_TRIP;
+
+        System.out.printf("%-8s %8.2f bytes per round trip %s%n", check, bytesPerRoundTrip, passed ? "ok" : "FAILED");
+
+        return passed;
+    }
+}
@@ -0,0 +1,110 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Framing throughput of the decoder: a stream of packets fed byte by byte
+ * (decodeNextByte, as the blocking handlers do) or a buffer at a time (decode,
+ * as the reactor does). One operation is one stream, see the bytes counter
+ * for bytes/s and -prof gc for allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int PACKETS = 256; // in a stream
+
+    /**
+     * data: DATA packets of full blocks, ack: ACK packets, requests: RRQ, WRQ,
+     * DELRQ and DIRQ packets.
+     */
+    @Param({ "data", "ack", "requests" })
+    public String packets;
+
+    private byte[] stream;
+    private ByteBuffer buffer;
+    private TftpEncoderDecoder decoder;
+    private Consumer<byte[]> consumer;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes; // decoded
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] payload = Packets.randomBytes(TftpEncoderDecoder.MAX_DATA_PACKET);
+
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] packet;
+
+            switch (packets) {
+                case "data":
+                    packet = Packets.data((short) (i + 1), payload, 0, payload.length);
+                    break;
+                case "ack":
+                    packet = TftpEncoderDecoder.ackPacket((short) (i + 1));
+                    break;
+                default:
+                    OpCodes[] opcodes = { OpCodes.RRQ, OpCodes.WRQ, OpCodes.DELRQ };
+                    packet = i % 4 == 3 ? OpCodes.DIRQ.getBytes()
+                            : Packets.request(opcodes[i % 4], "file-" + i + ".txt");
+            }
+
+            out.write(packet, 0, packet.length);
+        }
+
+        stream = out.toByteArray();
+        buffer = ByteBuffer.wrap(stream);
+        decoder = new TftpEncoderDecoder();
+        consumer = blackhole::consume;
+    }
+
+    @Benchmark
+    public void decodeNextByte(Bytes counter, Blackhole blackhole) {
+        for (byte b : stream) {
+            byte[] packet = decoder.decodeNextByte(b);
+
+            if (packet != null)
+                blackhole.consume(packet);
+        }
+
+        counter.bytes += stream.length;
+    }
+
+    @Benchmark
+    public void decodeBuffer(Bytes counter) {
+        buffer.clear();
+        decoder.decode(buffer, consumer);
+        counter.bytes += stream.length;
+    }
+}
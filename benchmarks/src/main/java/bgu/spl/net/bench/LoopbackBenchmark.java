@@ -0,0 +1,208 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+import bgu.spl.net.srv.Server;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RRQ and WRQ transfers over loopback TCP, against a server started with
+ * Server.threadPerClient. Each benchmark thread is a client. One operation is
+ * one transfer, see the bytes counter for bytes/s. Runs in the server
+ * directory, it reads and writes its Files directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final AtomicInteger clients = new AtomicInteger();
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private byte[] rrq;
+    private byte[] wrq;
+    private byte[] delrq;
+    private byte[][] upload;
+    private int uploadSize;
+
+    @State(Scope.Benchmark)
+    public static class RunningServer {
+        @Param({ "7778" })
+        public int port;
+
+        @Param({ "65536" })
+        public int fileSize; // of the file that is read and the one that is uploaded
+
+        Path path;
+        private Server<byte[]> server;
+
+        @Setup
+        public void start() throws IOException, InterruptedException {
+            path = Packets.createFile("bench-loopback-" + fileSize + ".bin", fileSize);
+            server = Server.threadPerClient(port, TftpProtocol::new, TftpEncoderDecoder::new);
+
+            Thread serving = new Thread(server::serve, "bench-server");
+            serving.setDaemon(true);
+            serving.start();
+
+            // wait until it listens
+            while (true) {
+                try (Socket probe = new Socket("localhost", port)) {
+                    return;
+                } catch (ConnectException e) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        @TearDown
+        public void stop() throws IOException {
+            server.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes; // of file data transferred
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void connect(RunningServer server) throws IOException {
+        String name = "bench-loopback-" + clients.incrementAndGet();
+
+        socket = new Socket("localhost", server.port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        rrq = Packets.request(OpCodes.RRQ, server.path.getFileName().toString());
+        wrq = Packets.request(OpCodes.WRQ, name + ".bin");
+        delrq = Packets.request(OpCodes.DELRQ, name + ".bin");
+        upload = Packets.upload(Packets.randomBytes(server.fileSize));
+        uploadSize = server.fileSize;
+
+        send(Packets.request(OpCodes.LOGRQ, name));
+        expectAck();
+    }
+
+    @TearDown
+    public void disconnect() throws IOException {
+        send(OpCodes.DISC.getBytes());
+        expectAck();
+        socket.close();
+    }
+
+    @Benchmark
+    public void rrq(Bytes counter) throws IOException {
+        send(rrq);
+
+        int size;
+
+        do {
+            if (readPacket() != OpCodes.DATA)
+                throw new IllegalStateException("expected DATA");
+
+            size = in.readUnsignedShort();
+            short blockNumber = in.readShort();
+
+            in.skipNBytes(size);
+            send(TftpEncoderDecoder.ackPacket(blockNumber));
+            counter.bytes += size;
+        } while (size == TftpEncoderDecoder.MAX_DATA_PACKET);
+    }
+
+    /**
+     * An upload, and the DELRQ that removes the file again.
+     */
+    @Benchmark
+    public void wrq(Bytes counter) throws IOException {
+        send(wrq);
+        expectAck();
+
+        for (byte[] packet : upload) {
+            send(packet);
+            expectAck();
+        }
+
+        send(delrq);
+        expectAck();
+        counter.bytes += uploadSize;
+    }
+
+    private void send(byte[] packet) throws IOException {
+        out.write(packet);
+        out.flush();
+    }
+
+    private void expectAck() throws IOException {
+        if (readPacket() != OpCodes.ACK)
+            throw new IllegalStateException("expected ACK");
+
+        in.readShort();
+    }
+
+    /**
+     * Read the opcode of the next packet, skipping broadcasts.
+     */
+    private OpCodes readPacket() throws IOException {
+        while (true) {
+            OpCodes opcode = OpCodes.fromBytes(in.readByte(), in.readByte());
+
+            if (opcode == OpCodes.ERROR) {
+                in.readShort();
+                throw new IllegalStateException("ERROR " + readString());
+            }
+
+            if (opcode != OpCodes.BCAST)
+                return opcode;
+
+            in.readByte(); // deleted or added
+            readString();
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder string = new StringBuilder();
+
+        for (byte b = in.readByte(); b != 0; b = in.readByte())
+            string.append((char) b);
+
+        return string.toString();
+    }
+}
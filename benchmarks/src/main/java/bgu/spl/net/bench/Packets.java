@@ -0,0 +1,82 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Client packets, and the files the benchmarks read.
+ */
+class Packets {
+    static final Path FILES = Paths.get("Files"); // the server's directory, relative to where it runs
+
+    private Packets() {
+    }
+
+    /**
+     * @param opcode RRQ, WRQ, LOGRQ or DELRQ.
+     * @param name   the file name or username.
+     * @return the packet.
+     */
+    static byte[] request(OpCodes opcode, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[3 + nameBytes.length];
+
+        packet[0] = opcode.getBytes()[0];
+        packet[1] = opcode.getBytes()[1];
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+
+        return packet;
+    }
+
+    static byte[] data(short blockNumber, byte[] payload, int offset, int size) {
+        byte[] packet = new byte[6 + size];
+
+        packet[0] = OpCodes.DATA.getBytes()[0];
+        packet[1] = OpCodes.DATA.getBytes()[1];
+        TftpEncoderDecoder.putShort(packet, 2, (short) size);
+        TftpEncoderDecoder.putShort(packet, 4, blockNumber);
+        System.arraycopy(payload, offset, packet, 6, size);
+
+        return packet;
+    }
+
+    /**
+     * Split a payload into the DATA packets of an upload.
+     */
+    static byte[][] upload(byte[] payload) {
+        int blockSize = TftpEncoderDecoder.MAX_DATA_PACKET;
+        byte[][] packets = new byte[payload.length / blockSize + 1][];
+
+        for (int i = 0; i < packets.length; i++) {
+            int offset = i * blockSize;
+            packets[i] = data((short) (i + 1), payload, offset, Math.min(blockSize, payload.length - offset));
+        }
+
+        return packets;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+
+        new Random(size).nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Create a file in the server's directory.
+     *
+     * @return the file.
+     */
+    static Path createFile(String name, int size) throws IOException {
+        Files.createDirectories(FILES);
+
+        return Files.write(FILES.resolve(name), randomBytes(size));
+    }
+}
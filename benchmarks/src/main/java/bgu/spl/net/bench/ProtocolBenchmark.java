@@ -0,0 +1,162 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.DirectoryFileStore;
+import bgu.spl.net.impl.tftp.FileStore;
+import bgu.spl.net.impl.tftp.MemoryFileStore;
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.PublicResources;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole RRQ, WRQ and DIRQ exchanges through TftpProtocol, answered the way a
+ * client would, without any network. One operation is one transfer, see the
+ * bytes counter for bytes/s. Runs in the server directory: with the directory
+ * store it reads and writes its Files directory, the memory store leaves the
+ * disk out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final AtomicInteger connectionIds = new AtomicInteger(1 << 20); // away from the server's
+
+    private StubConnections connections;
+    private TftpProtocol protocol;
+    private byte[] rrq;
+    private byte[] wrq;
+    private byte[] delrq;
+    private byte[][] upload;
+    private int uploadSize;
+
+    @State(Scope.Benchmark)
+    public static class SharedFile {
+        @Param({ "65536" })
+        public int fileSize; // of the file that is read and the one that is uploaded
+
+        @Param({ "directory", "memory" })
+        public String store; // where the protocol keeps its files
+
+        String filename;
+
+        @Setup
+        public void create() throws IOException {
+            filename = "bench-protocol-" + fileSize + ".bin";
+            PublicResources.useFileStore(
+                    store.equals("memory") ? new MemoryFileStore() : new DirectoryFileStore("Files"));
+
+            try (FileStore.Upload upload = PublicResources.fileStore.create(filename)) {
+                upload.write(ByteBuffer.wrap(Packets.randomBytes(fileSize)));
+                upload.publish();
+            }
+        }
+
+        @TearDown
+        public void delete() throws IOException {
+            PublicResources.fileStore.delete(filename);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes; // sent by the protocol
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup(SharedFile file) {
+        int connectionId = connectionIds.getAndIncrement();
+
+        connections = new StubConnections();
+        protocol = new TftpProtocol();
+        protocol.start(connectionId, connections);
+        protocol.process(Packets.request(OpCodes.LOGRQ, "bench-" + connectionId));
+
+        String uploadName = "bench-upload-" + connectionId + ".bin";
+
+        rrq = Packets.request(OpCodes.RRQ, file.filename);
+        wrq = Packets.request(OpCodes.WRQ, uploadName);
+        delrq = Packets.request(OpCodes.DELRQ, uploadName);
+        upload = Packets.upload(Packets.randomBytes(file.fileSize));
+        uploadSize = file.fileSize;
+    }
+
+    @TearDown
+    public void tearDown() {
+        protocol.process(OpCodes.DISC.getBytes());
+        protocol.onClose(); // like a connection that closes, so its timers are cancelled
+    }
+
+    @Benchmark
+    public void rrq(Bytes counter) {
+        long sent = connections.bytes;
+
+        protocol.process(rrq);
+        acknowledgeAll();
+        counter.bytes += connections.bytes - sent;
+    }
+
+    /**
+     * An upload, and the DELRQ that removes the file again.
+     */
+    @Benchmark
+    public void wrq(Bytes counter) {
+        protocol.process(wrq);
+
+        for (byte[] packet : upload)
+            protocol.process(packet);
+
+        protocol.process(delrq);
+        counter.bytes += uploadSize;
+    }
+
+    @Benchmark
+    public void dirq(Bytes counter) {
+        long sent = connections.bytes;
+
+        protocol.process(OpCodes.DIRQ.getBytes());
+        acknowledgeAll();
+        counter.bytes += connections.bytes - sent;
+    }
+
+    // ack DATA packets until the short one that ends the transfer
+    private void acknowledgeAll() {
+        while (true) {
+            int size = connections.lastDataSize;
+
+            if (size < 0)
+                throw new IllegalStateException("the protocol did not send DATA");
+
+            protocol.process(TftpEncoderDecoder.ackPacket(connections.lastBlock));
+
+            if (size < TftpEncoderDecoder.MAX_DATA_PACKET)
+                return;
+        }
+    }
+}
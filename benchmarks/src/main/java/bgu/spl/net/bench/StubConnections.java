@@ -0,0 +1,73 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.Connections;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Connections that don't send anything, they only remember the last DATA
+ * packet, so a benchmark can answer it like a client would.
+ * BCAST packets are sent from the broadcast threads, they are ignored.
+ */
+class StubConnections implements Connections<byte[]> {
+    long packets; // sent by the protocol, BCAST excluded
+    long bytes;
+    int lastDataSize = -1; // -1 if the last packet was not DATA
+    short lastBlock;
+
+    @Override
+    public boolean connect(int connectionId, ConnectionHandler<byte[]> handler) {
+        return true;
+    }
+
+    @Override
+    public boolean send(int connectionId, byte[] msg) {
+        record(msg, msg.length);
+
+        return true;
+    }
+
+    @Override
+    public boolean send(int connectionId, byte[] header, FileChannel file, long position, long count) {
+        record(header, header.length + count);
+
+        return true;
+    }
+
+    @Override
+    public void closeAfterSent(int connectionId, Closeable resource) {
+        try {
+            resource.close(); // nothing waits to be written
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void disconnect(int connectionId) {
+    }
+
+    @Override
+    public void close(int connectionId) {
+    }
+
+    private void record(byte[] packet, long size) {
+        OpCodes opcode = OpCodes.extractOpcode(packet);
+
+        if (opcode == OpCodes.BCAST)
+            return;
+
+        packets++;
+        bytes += size;
+
+        if (opcode == OpCodes.DATA) {
+            lastDataSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) & 0xffff;
+            lastBlock = TftpEncoderDecoder.bytesToShort(packet[4], packet[5]);
+        } else {
+            lastDataSize = -1;
+        }
+    }
+}
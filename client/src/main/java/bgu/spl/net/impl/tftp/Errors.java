@@ -1,5 +1,7 @@
 package bgu.spl.net.impl.tftp;
 
+import java.nio.charset.StandardCharsets;
+
 /** Different TFTP errors and their messages and codes. */
 public enum Errors {
     NOT_DEFINED(0),
@@ -11,19 +13,54 @@ public enum Errors {
     NOT_LOGGED_IN(6),
     ALR_LOGGED_IN(7);
 
+    private static final Errors[] BY_NUMBER = values(); // the codes are 0, 1, 2...
+
+    // getMessage can't be called from the constructor, the packets are built once all the errors exist
+    static {
+        for (Errors error : BY_NUMBER)
+            error.packet = error.buildPacket();
+    }
+
     private final short num;
+    private final byte[] bytes;
+    private byte[] packet;
 
     Errors(int num) {
         this.num = (short) num;
+        this.bytes = new byte[] { (byte) (num >> 8), (byte) (num & 0xff) };
     }
 
     /**
      * Get the code of the current error.
+     * The array is shared, it must not be modified.
      * 
      * @return a 2-bytes array.
      */
     public byte[] getBytes() {
-        return new byte[] { (byte) (num >> 8), (byte) (num & 0xff) };
+        return bytes;
+    }
+
+    /**
+     * Get the ERROR packet of the current error, with its default message.
+     * The packet is shared, it must not be modified.
+     * 
+     * @return the encoded packet.
+     */
+    public byte[] getPacket() {
+        return packet;
+    }
+
+    private byte[] buildPacket() {
+        byte[] msg = getMessage().getBytes(StandardCharsets.UTF_8);
+        byte[] pac = new byte[5 + msg.length]; // the last byte is 0
+
+        pac[0] = OpCodes.ERROR.getBytes()[0];
+        pac[1] = OpCodes.ERROR.getBytes()[1];
+        pac[2] = bytes[0];
+        pac[3] = bytes[1];
+        System.arraycopy(msg, 0, pac, 4, msg.length);
+
+        return pac;
     }
 
     /**
@@ -42,11 +79,7 @@ public enum Errors {
      * @return corresponding error enum or UNKNOWN enum if the value is invalid.
      */
     public static Errors fromInt(int num) {
-        for (Errors error : Errors.values())
-            if (error.num == num)
-                return error;
-
-        return NOT_DEFINED;
+        return num >= 0 && num < BY_NUMBER.length ? BY_NUMBER[num] : NOT_DEFINED;
     }
 
     /**
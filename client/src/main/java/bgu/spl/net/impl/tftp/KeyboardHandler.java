@@ -3,10 +3,15 @@ package bgu.spl.net.impl.tftp;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import bgu.spl.net.api.MessagingProtocol;
 
@@ -14,9 +19,28 @@ public class KeyboardHandler implements Runnable {
     private BufferedOutputStream out;
     private BufferedReader in;
     private MessagingProtocol<byte[]> protocol;
+    private Map<String, String> options; // requested before every RRQ/WRQ
+    private boolean resume; // RRQ of a file that exists continues it instead of failing
+    private long resumeOffset = -1; // where the RRQ that is being sent continues the file, if it does
+    private ParallelDownloader downloader; // null to download on this connection only
+    private String username; // the last one we logged in with
+    private boolean dedup; // send the hash of uploads, so the server may skip them
+    private String uploadHash; // of the WRQ that is being sent, if dedup
     public Object discLock; // used to lick the thread when the user wants to disconnect
 
-    public KeyboardHandler(Socket socket, MessagingProtocol<byte[]> protocol) {
+    /**
+     * @param options    the options to request before every RRQ/WRQ.
+     * @param resume     if true, a RRQ of a file that already exists (e.g. from
+     *                   a download that was cut) asks the server for the rest
+     *                   of it.
+     * @param downloader if not null, new files are downloaded with it, over
+     *                   several connections.
+     * @param dedup      if true, every WRQ sends the SHA-256 of the file first,
+     *                   and the server does not need the file if it already has
+     *                   its content.
+     */
+    public KeyboardHandler(Socket socket, MessagingProtocol<byte[]> protocol, Map<String, String> options,
+            boolean resume, ParallelDownloader downloader, boolean dedup) {
         try {
             this.out = new BufferedOutputStream(socket.getOutputStream());
             this.in = new BufferedReader(new InputStreamReader(System.in));
@@ -24,6 +48,10 @@ public class KeyboardHandler implements Runnable {
         }
 
         this.protocol = protocol;
+        this.options = options;
+        this.resume = resume;
+        this.downloader = downloader;
+        this.dedup = dedup;
         this.discLock = new Object();
     }
 
@@ -39,7 +67,15 @@ public class KeyboardHandler implements Runnable {
                 if (command != null) {
                     encodedCommand = encodeCommand(command);
 
-                    if (encodedCommand != null) {
+                    if (encodedCommand != null && OpCodes.extractOpcode(encodedCommand) == OpCodes.RRQ
+                            && downloader != null && resumeOffset < 0) {
+                        downloadInParallel(new String(encodedCommand, 2, encodedCommand.length - 3,
+                                StandardCharsets.UTF_8));
+                    } else if (encodedCommand != null) {
+                        if (OpCodes.extractOpcode(encodedCommand) == OpCodes.RRQ
+                                || OpCodes.extractOpcode(encodedCommand) == OpCodes.WRQ)
+                            sendOptions();
+
                         protocol.process(encodedCommand); // response should be null, just inform the thread that we
                                                           // sent this message
                         send(encodedCommand);
@@ -64,6 +100,47 @@ public class KeyboardHandler implements Runnable {
         }
     }
 
+    /**
+     * Download a file over several connections, this one waits meanwhile.
+     * 
+     * @param filename the name of the file.
+     */
+    private void downloadInParallel(String filename) {
+        if (username == null) {
+            System.out.println(Errors.NOT_LOGGED_IN.getMessage());
+            return;
+        }
+
+        try {
+            downloader.download(username, filename);
+            System.out.println("RRQ " + filename + " complete");
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Request the transfer options, they apply to the RRQ/WRQ that is sent
+     * next.
+     */
+    private void sendOptions() {
+        for (Map.Entry<String, String> option : options.entrySet())
+            sendOption(option.getKey(), option.getValue());
+
+        if (resumeOffset >= 0)
+            sendOption(TftpOptions.OFFSET, Long.toString(resumeOffset));
+
+        if (uploadHash != null)
+            sendOption(TftpOptions.SHA256, uploadHash);
+    }
+
+    private void sendOption(String name, String value) {
+        byte[] packet = TftpOptions.buildPacket(OpCodes.OPT, name, value);
+
+        protocol.process(packet);
+        send(packet);
+    }
+
     /**
      * Check if a command argument is valid.
      * 
@@ -94,22 +171,35 @@ public class KeyboardHandler implements Runnable {
         String arg = args.length > 1 ? command.substring(args[0].length() + 1) : "";
         byte[] encodedArg = arg.getBytes(StandardCharsets.UTF_8);
 
+        resumeOffset = -1;
+        uploadHash = null;
+
         switch (code) {
             case RRQ:
                 if (!argumentIsValid(encodedArg))
                     System.out.println("Invalid filename");
-                else if ((new File(arg)).exists())
+                else if ((new File(arg)).exists() && !resume)
                     System.out.println("File already exists!");
-                else
+                else {
+                    if ((new File(arg)).exists()) {
+                        resumeOffset = new File(arg).length();
+                        System.out.println("Resuming " + arg + " from byte " + resumeOffset);
+                    }
+
                     encodedCommand = encapsulate(encodedArg, code);
+                }
                 break;
             case WRQ:
                 if (!argumentIsValid(encodedArg))
                     System.out.println("Invalid filename");
                 else if (!(new File(arg)).exists())
                     System.out.println("File does not exists!");
-                else
+                else {
+                    if (dedup)
+                        uploadHash = hash(new File(arg));
+
                     encodedCommand = encapsulate(encodedArg, code);
+                }
                 break;
             case DELRQ:
                 if (!argumentIsValid(encodedArg))
@@ -122,8 +212,10 @@ public class KeyboardHandler implements Runnable {
                     System.out.println("Invalid username");
                 else if ((new File(arg)).exists())
                     System.out.println("File does not exist!");
-                else
+                else {
+                    username = arg;
                     encodedCommand = encapsulate(encodedArg, code);
+                }
                 break;
             case DIRQ:
             case DISC:
@@ -137,6 +229,33 @@ public class KeyboardHandler implements Runnable {
         return encodedCommand;
     }
 
+    /**
+     * Hash a file to upload.
+     * 
+     * @param file the file.
+     * @return its SHA-256 in hex, or null if it could not be read (then it is
+     *         uploaded without one).
+     */
+    private static String hash(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+
+            while ((read = in.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
     /**
      * Create an encoded command from an argument and an opcode.
      * 
@@ -3,11 +3,13 @@ package bgu.spl.net.impl.tftp;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 
 public class Listener implements Runnable {
+    private static final int READ_BUFFER_SIZE = 1 << 13; // 8k
     private BufferedInputStream in;
     private MessageEncoderDecoder<byte[]> encdec;
     private MessagingProtocol<byte[]> protocol;
@@ -28,26 +30,31 @@ public class Listener implements Runnable {
 
     @Override
     public void run() {
-        int read; // current byte
-        byte[] nextMessage, response;
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        int read; // number of bytes read
 
         try {
-            while (!protocol.shouldTerminate() && (read = in.read()) >= 0) {
-                nextMessage = encdec.decodeNextByte((byte) read);
+            while (!protocol.shouldTerminate() && (read = in.read(readBuffer)) >= 0) {
+                encdec.decode(ByteBuffer.wrap(readBuffer, 0, read), this::handleMessage);
+            }
+        } catch (IOException ignored) {
 
-                if (nextMessage != null) {
-                    response = protocol.process(nextMessage);
+        }
+    }
 
-                    if (response != null)
-                        keyboardHandler.send(response);
+    /**
+     * Process a message from the server and send the response, if any.
+     * 
+     * @param message
+     */
+    private void handleMessage(byte[] message) {
+        byte[] response = protocol.process(message);
 
-                    synchronized (keyboardHandler.discLock) {
-                        keyboardHandler.discLock.notify();
-                    }
-                }
-            }
-        } catch (IOException ignored) {
+        if (response != null)
+            keyboardHandler.send(response);
 
+        synchronized (keyboardHandler.discLock) {
+            keyboardHandler.discLock.notify();
         }
     }
 }
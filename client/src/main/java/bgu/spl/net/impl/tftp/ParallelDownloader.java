@@ -0,0 +1,324 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Downloads a file over several connections at once, each one reading a range
+ * of the file (the offset and length options) and writing it at its place in
+ * the target file. A single connection waits for an ACK every window, so a
+ * few of them side by side fill the link much better.
+ * Every connection logs in on its own, as the user with a suffix.
+ */
+public class ParallelDownloader {
+    private static final long MIN_RANGE = 1 << 16; // smaller files are not worth splitting
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final Map<String, String> options; // requested on every connection
+
+    /**
+     * @param connections how many connections to download with.
+     * @param options     transfer options to request on each connection (e.g.
+     *                    the window size).
+     */
+    public ParallelDownloader(String host, int port, int connections, Map<String, String> options) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.options = options;
+    }
+
+    /**
+     * Download a file into the current directory.
+     *
+     * @param username the user, every connection logs in as username-N.
+     * @param filename the name of the file on the server and here.
+     */
+    public void download(String username, String filename) throws IOException {
+        long size;
+
+        // an empty range just to learn the size
+        try (RangeConnection probe = new RangeConnection(username + "-0")) {
+            size = probe.read(filename, 0, 0, -1, null);
+        }
+
+        int ranges = (int) Math.max(1, Math.min(connections, size / MIN_RANGE));
+        long rangeSize = (size + ranges - 1) / ranges;
+        FileChannel target = FileChannel.open(new File(filename).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        ExecutorService pool = Executors.newFixedThreadPool(ranges);
+        boolean complete = false;
+
+        try {
+            // preallocate, the ranges are written in any order
+            if (size > 0)
+                target.write(ByteBuffer.allocate(1), size - 1);
+
+            List<Future<Long>> results = new ArrayList<>();
+
+            for (int i = 0; i < ranges; i++) {
+                long offset = i * rangeSize;
+                long length = Math.min(rangeSize, size - offset);
+                String rangeUser = username + "-" + (i + 1);
+
+                results.add(pool.submit(() -> {
+                    try (RangeConnection connection = new RangeConnection(rangeUser)) {
+                        return connection.read(filename, offset, length, size, target);
+                    }
+                }));
+            }
+
+            for (Future<Long> result : results)
+                result.get();
+
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            target.close();
+
+            // don't leave a file that looks whole but has holes
+            if (!complete)
+                new File(filename).delete();
+        }
+    }
+
+    /** A logged in connection that reads one range of a file. */
+    private class RangeConnection implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final TftpEncoderDecoder encdec = new TftpEncoderDecoder();
+        private final byte[] readBuffer = new byte[1 << 16];
+        private final ArrayDeque<byte[]> decoded = new ArrayDeque<>(); // framed, not received yet, copies
+        private Inflater inflater; // if the server compresses the range
+        private byte[] inflated;
+
+        RangeConnection(String username) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream(); // read a buffer at a time, see receive
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            send(request(OpCodes.LOGRQ, username));
+            expectAck();
+        }
+
+        /**
+         * Read a range of a file.
+         *
+         * @param expectedSize the size of the file when it was probed, or -1 when
+         *                     probing. A range of a file of another size is of
+         *                     another file, that replaced it meanwhile.
+         * @param target       where to write the range, at its offset, or null to
+         *                     only learn the size of the file.
+         * @return the size of the whole file.
+         */
+        long read(String filename, long offset, long length, long expectedSize, FileChannel target)
+                throws IOException {
+            for (Map.Entry<String, String> option : options.entrySet())
+                send(TftpOptions.buildPacket(OpCodes.OPT, option.getKey(), option.getValue()));
+
+            send(TftpOptions.buildPacket(OpCodes.OPT, TftpOptions.OFFSET, Long.toString(offset)));
+            send(TftpOptions.buildPacket(OpCodes.OPT, TftpOptions.LENGTH, Long.toString(length)));
+            send(TftpOptions.buildPacket(OpCodes.OPT, TftpOptions.TRANSFER_SIZE, "0"));
+            send(request(OpCodes.RRQ, filename));
+
+            int windowSize = TftpOptions.DEFAULT_WINDOW_SIZE;
+            int blockSize = TftpOptions.DEFAULT_BLOCK_SIZE;
+            long fileSize = -1;
+            long position = offset;
+            long blocks = 0;
+
+            while (true) {
+                byte[] packet = receive();
+
+                if (OpCodes.extractOpcode(packet) == OpCodes.OACK) {
+                    String name = TftpOptions.getName(packet);
+
+                    if (name.equals(TftpOptions.COMPRESS)) {
+                        inflater = new Inflater();
+                        inflated = new byte[1 << 16];
+                        continue;
+                    }
+
+                    String value = TftpOptions.getValue(packet);
+
+                    if (name.equals(TftpOptions.WINDOW_SIZE))
+                        windowSize = (int) acknowledged(name, value, 1, TftpOptions.MAX_WINDOW_SIZE);
+                    else if (name.equals(TftpOptions.BLOCK_SIZE))
+                        blockSize = (int) acknowledged(name, value, TftpOptions.MIN_BLOCK_SIZE,
+                                TftpOptions.MAX_BLOCK_SIZE);
+                    else if (name.equals(TftpOptions.TRANSFER_SIZE))
+                        fileSize = acknowledged(name, value, 0, Long.MAX_VALUE);
+                    else if (name.equals(TftpOptions.OFFSET) && acknowledged(name, value, 0, Long.MAX_VALUE) != offset)
+                        throw new IOException("the server can't read " + filename + " from " + offset);
+
+                    if (expectedSize >= 0 && fileSize >= 0 && fileSize != expectedSize)
+                        throw new IOException(filename + " changed on the server during the download");
+
+                    continue;
+                }
+
+                if (OpCodes.extractOpcode(packet) != OpCodes.DATA)
+                    throw new IOException("unexpected " + OpCodes.extractOpcode(packet));
+
+                if (fileSize < 0)
+                    throw new IOException("the server does not support ranges");
+
+                int dataSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) & 0xffff;
+                boolean last = dataSize < blockSize;
+
+                if (target != null && inflater != null)
+                    position = writeInflated(packet, dataSize, target, position);
+                else if (target != null)
+                    position = writeAt(ByteBuffer.wrap(packet, 6, dataSize), target, position);
+
+                // like an ordinary RRQ, the last block of every window is acknowledged
+                if (++blocks % windowSize == 0 || last)
+                    send(TftpEncoderDecoder.ackPacket(TftpEncoderDecoder.bytesToShort(packet[4], packet[5])));
+
+                if (last && target != null && inflater != null && !inflater.finished())
+                    throw new IOException("the compressed range of " + filename + " is incomplete");
+
+                if (last)
+                    return fileSize;
+            }
+        }
+
+        /**
+         * @return the value of an acknowledged option, clamped to the range the
+         *         client can use, like {@link TftpProtocol} does.
+         * @throws IOException if it is not a number.
+         */
+        private long acknowledged(String name, String value, long min, long max) throws IOException {
+            long parsed = TftpOptions.parseLong(value, min, max);
+
+            if (parsed < 0) // min is never negative, -1 is a value that is not a number
+                throw new IOException("the server acknowledged a bad " + name + ": " + value);
+
+            return parsed;
+        }
+
+        /**
+         * Inflate a block of a compressed range and write it at its place.
+         *
+         * @return where the next block is written.
+         */
+        private long writeInflated(byte[] packet, int dataSize, FileChannel target, long position)
+                throws IOException {
+            inflater.setInput(packet, 6, dataSize);
+
+            try {
+                do {
+                    position = writeAt(ByteBuffer.wrap(inflated, 0, inflater.inflate(inflated)), target, position);
+                } while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary());
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed data: " + e.getMessage());
+            }
+
+            return position;
+        }
+
+        private long writeAt(ByteBuffer data, FileChannel target, long position) throws IOException {
+            while (data.hasRemaining())
+                position += target.write(data, position);
+
+            return position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null)
+                inflater.end();
+
+            try {
+                send(OpCodes.DISC.getBytes());
+                expectAck();
+            } finally {
+                socket.close();
+            }
+        }
+
+        private void expectAck() throws IOException {
+            if (OpCodes.extractOpcode(receive()) != OpCodes.ACK)
+                throw new IOException("expected an ACK");
+        }
+
+        /**
+         * @return the next packet that is not a broadcast. It is the caller's
+         *         own, later packets don't change it.
+         */
+        private byte[] receive() throws IOException {
+            // whatever the socket has is framed in bulk, the packets wait in decoded
+            while (decoded.isEmpty()) {
+                int read = in.read(readBuffer);
+
+                if (read < 0)
+                    throw new EOFException("the server closed the connection");
+
+                encdec.decode(ByteBuffer.wrap(readBuffer, 0, read), this::enqueue);
+            }
+
+            byte[] packet = decoded.poll();
+
+            if (OpCodes.extractOpcode(packet) == OpCodes.ERROR)
+                throw new IOException("Error " + TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) + " ("
+                        + new String(packet, 4, packet.length - 5, StandardCharsets.UTF_8) + ")");
+
+            return packet;
+        }
+
+        /**
+         * Keep a decoded packet for receive. The decoder reuses its array for
+         * the next packet of the same size, so a read that holds a few DATA
+         * packets of a window would leave them all with the last one's bytes:
+         * the packet is copied.
+         */
+        private void enqueue(byte[] packet) {
+            if (OpCodes.extractOpcode(packet) != OpCodes.BCAST)
+                decoded.add(packet.clone());
+        }
+
+        private void send(byte[] packet) throws IOException {
+            out.write(packet);
+            out.flush();
+        }
+    }
+
+    private static byte[] request(OpCodes opcode, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[3 + nameBytes.length];
+
+        packet[0] = opcode.getBytes()[0];
+        packet[1] = opcode.getBytes()[1];
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+
+        return packet;
+    }
+}
@@ -2,6 +2,8 @@ package bgu.spl.net.impl.tftp;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
@@ -29,7 +31,14 @@ public class TftpClient {
             MessagingProtocol<byte[]> protocol = new TftpProtocol();
             MessageEncoderDecoder<byte[]> encdec = new TftpEncoderDecoder();
 
-            KeyboardHandler inputHandler = new KeyboardHandler(sock, protocol);
+            Map<String, String> options = readOptions();
+            int connections = Integer.getInteger("tftp.connections", 1);
+            ParallelDownloader downloader = connections > 1
+                    ? new ParallelDownloader(host, port, connections, options)
+                    : null;
+
+            KeyboardHandler inputHandler = new KeyboardHandler(sock, protocol, options,
+                    Boolean.getBoolean("tftp.resume"), downloader, Boolean.getBoolean("tftp.dedup"));
             Thread keyboardThread = new Thread(inputHandler);
 
             Runnable listener = new Listener(sock, encdec, protocol, inputHandler);
@@ -41,4 +50,36 @@ public class TftpClient {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Read the options to request before every RRQ/WRQ from the system
+     * properties:
+     * <ul>
+     * <li>-Dtftp.windowsize=N: blocks sent before waiting for an ACK.</li>
+     * <li>-Dtftp.blksize=N: bytes in a block.</li>
+     * <li>-Dtftp.compress=deflate: compress the data of the transfers.</li>
+     * </ul>
+     * main reads the other client properties itself:
+     * <ul>
+     * <li>-Dtftp.resume=true: continue the download of files that already
+     * exist, see KeyboardHandler.</li>
+     * <li>-Dtftp.connections=N: download files over N connections, see
+     * ParallelDownloader.</li>
+     * <li>-Dtftp.dedup=true: send the hash of every upload first.</li>
+     * </ul>
+     * 
+     * @return the options by name.
+     */
+    private static Map<String, String> readOptions() {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        for (String name : new String[] { TftpOptions.WINDOW_SIZE, TftpOptions.BLOCK_SIZE, TftpOptions.COMPRESS }) {
+            String value = System.getProperty("tftp." + name);
+
+            if (value != null)
+                options.put(name, value);
+        }
+
+        return options;
+    }
 }
@@ -1,18 +1,30 @@
 package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
+/**
+ * ACK and DATA packets, which make up almost all of a transfer, are decoded
+ * into arrays that are reused for the next packet of the same kind (and size),
+ * and DIRQ/DISC are decoded into the shared opcode arrays. A consumer must be
+ * done with a decoded packet when it returns, and must not modify it.
+ */
 public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
-    private final byte[] packetBytes = new byte[1 << 10];
+    private byte[] packetBytes = new byte[1 << 10]; // grows if a packet does not fit
+    private final byte[] ackPacket = new byte[4];
+    private byte[] dataPacket = new byte[0];
     private int len = 0; // how many byted did we read into the current packet
     private OpCodes opcode;
-    private short leftToRead = 0;
+    private int zeros = 0; // zeros seen in the current option packet
 
+    // the default block size, clients may negotiate bigger blocks (TftpOptions.BLOCK_SIZE)
     public static final int MAX_DATA_PACKET = 512;
 
     @Override
     public byte[] decodeNextByte(byte nextByte) {
+        ensureCapacity(len + 1);
         packetBytes[len++] = nextByte; // save the last byte
 
         if (len == 1)
@@ -38,7 +50,11 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
                 return decodeDIRQ_DISC();
             case BCAST:
                 return decodeBCAST();
+            case OPT:
+            case OACK:
+                return decodeOption();
             default:
+                len = 0; // drop the bad opcode and start over with the next byte
                 return OpCodes.UNKNOWN.getBytes();
         }
     }
@@ -55,28 +71,23 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
     }
 
     private byte[] decodeDIRQ_DISC() {
-        byte[] message = Arrays.copyOf(packetBytes, len);
         len = 0;
 
-        return message;
+        return opcode.getBytes();
     }
 
     private byte[] decodeData() {
         byte[] message = null;
 
-        if (len == 4) {
-            leftToRead = bytesToShort(packetBytes[2], packetBytes[3]);
-            leftToRead += 2; // the size of block-number field
-        } else if (len > 4) {
-            // this is the end of the packet
-            if (--leftToRead == 0) {
-                message = new byte[len];
-
-                for (int i = 0; i < len; i++)
-                    message[i] = packetBytes[i];
+        // make room for the whole block at once, its size is whatever was negotiated
+        if (len == 4)
+            ensureCapacity(6 + dataSize());
 
-                len = 0;
-            }
+        // the packet size field tells how many bytes follow the block number
+        if (len >= 4 && len == 6 + dataSize()) {
+            message = packetArray(len);
+            System.arraycopy(packetBytes, 0, message, 0, len);
+            len = 0;
         }
 
         return message;
@@ -86,7 +97,8 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
         byte[] message = null;
 
         if (len == 4) {
-            message = Arrays.copyOf(packetBytes, len);
+            message = packetArray(len);
+            System.arraycopy(packetBytes, 0, message, 0, len);
             len = 0;
         }
 
@@ -104,6 +116,19 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
         return message;
     }
 
+    private byte[] decodeOption() {
+        byte[] message = null;
+
+        // option name and value, each terminated by a zero
+        if (len > 2 && packetBytes[len - 1] == 0 && ++zeros == 2) {
+            message = Arrays.copyOf(packetBytes, len);
+            len = 0;
+            zeros = 0;
+        }
+
+        return message;
+    }
+
     private byte[] decodeERR() {
         byte[] message = null;
 
@@ -115,6 +140,178 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
         return message;
     }
 
+    //////////////////////// BULK DECODER //////////////////////
+
+    /**
+     * Frame whole packets out of a read buffer. Instead of going byte by byte,
+     * the length of each packet is found from its header (or by looking for the
+     * terminating zero), and the packet is copied in one go.
+     */
+    @Override
+    public void decode(ByteBuffer in, Consumer<byte[]> out) {
+        while (in.hasRemaining()) {
+            byte[] message;
+
+            if (len < 2) {
+                packetBytes[len++] = in.get();
+
+                if (len < 2)
+                    continue;
+
+                opcode = OpCodes.fromBytes(packetBytes[0], packetBytes[1]);
+            }
+
+            switch (opcode) {
+                case RRQ:
+                case WRQ:
+                case LOGRQ:
+                case DELRQ:
+                    message = frameTerminatedBy0(in, 2);
+                    break;
+                case DATA:
+                    message = fill(in, 4) ? frame(in, 6 + dataSize()) : null;
+                    break;
+                case ACK:
+                    message = frame(in, 4);
+                    break;
+                case ERROR:
+                    message = frameTerminatedBy0(in, 4);
+                    break;
+                case DIRQ:
+                case DISC:
+                    len = 0;
+                    message = opcode.getBytes();
+                    break;
+                case BCAST:
+                    message = frameTerminatedBy0(in, 3);
+                    break;
+                case OPT:
+                case OACK:
+                    message = frameOption(in);
+                    break;
+                default:
+                    len = 0;
+                    message = OpCodes.UNKNOWN.getBytes();
+            }
+
+            if (message != null)
+                out.accept(message);
+        }
+    }
+
+    /**
+     * Read bytes of the current packet until it has a given length.
+     * 
+     * @param in     the read buffer.
+     * @param length the wanted length.
+     * @return true iff the current packet has the wanted length.
+     */
+    private boolean fill(ByteBuffer in, int length) {
+        int toRead = Math.min(length - len, in.remaining());
+
+        if (toRead > 0) {
+            ensureCapacity(len + toRead);
+            in.get(packetBytes, len, toRead);
+            len += toRead;
+        }
+
+        return len >= length;
+    }
+
+    /**
+     * Complete a packet of a known length.
+     * 
+     * @param in     the read buffer.
+     * @param length the length of the current packet.
+     * @return the packet, or null if the buffer ends before it (the bytes that
+     *         were read are kept).
+     */
+    private byte[] frame(ByteBuffer in, int length) {
+        if (in.remaining() < length - len) {
+            fill(in, length);
+            return null;
+        }
+
+        byte[] message = packetArray(length);
+
+        System.arraycopy(packetBytes, 0, message, 0, len);
+        in.get(message, len, length - len);
+        len = 0;
+
+        return message;
+    }
+
+    /**
+     * Complete a packet that ends with a zero byte.
+     * 
+     * @param in   the read buffer.
+     * @param from the first index in the packet that can hold the terminating
+     *             zero.
+     * @return the packet, or null if the buffer ends before it (the bytes that
+     *         were read are kept).
+     */
+    private byte[] frameTerminatedBy0(ByteBuffer in, int from) {
+        if (!fill(in, from))
+            return null;
+
+        for (int i = in.position(); i < in.limit(); i++)
+            if (in.get(i) == 0)
+                return frame(in, len + i - in.position() + 1);
+
+        fill(in, len + in.remaining());
+
+        return null;
+    }
+
+    /**
+     * Complete an option packet, that ends with its second zero byte.
+     * 
+     * @param in the read buffer.
+     * @return the packet, or null if the buffer ends before it (the bytes that
+     *         were read are kept).
+     */
+    private byte[] frameOption(ByteBuffer in) {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == 0 && ++zeros == 2) {
+                zeros = 0;
+                return frame(in, len + i - in.position() + 1);
+            }
+        }
+
+        fill(in, len + in.remaining());
+
+        return null;
+    }
+
+    /**
+     * Get an array for a decoded packet, reusing the last one for ACK/DATA.
+     * 
+     * @param length the length of the packet.
+     * @return an array of that length.
+     */
+    private byte[] packetArray(int length) {
+        switch (opcode) {
+            case ACK:
+                return ackPacket;
+            case DATA:
+                if (dataPacket.length != length)
+                    dataPacket = new byte[length];
+
+                return dataPacket;
+            default:
+                return new byte[length];
+        }
+    }
+
+    private int dataSize() {
+        return bytesToShort(packetBytes[2], packetBytes[3]) & 0xffff;
+    }
+
+    private void ensureCapacity(int length) {
+        if (packetBytes.length < length)
+            packetBytes = Arrays.copyOf(packetBytes, Math.max(length, packetBytes.length * 2));
+    }
+
     //////////////////////// ENCODER //////////////////////
 
     @Override
@@ -131,4 +328,76 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
     public static byte[] shortToBytes(short s) {
         return new byte[] { (byte) (s >> 8), (byte) (s & 0xff) };
     }
+
+    /**
+     * Write a short into an array, like shortToBytes but without a new array.
+     * 
+     * @param array the array.
+     * @param index where the short starts.
+     * @param s     the short.
+     */
+    public static void putShort(byte[] array, int index, short s) {
+        array[index] = (byte) (s >> 8);
+        array[index + 1] = (byte) (s & 0xff);
+    }
+
+    /**
+     * Build a DATA packet.
+     * 
+     * @param bytes       holds the data of the block.
+     * @param offset      where the data starts in bytes.
+     * @param size        the size of the data.
+     * @param blockNumber the block number.
+     * @return the encoded packet.
+     */
+    public static byte[] dataPacket(byte[] bytes, int offset, int size, short blockNumber) {
+        byte[] packet = dataHeader(size, blockNumber);
+
+        System.arraycopy(bytes, offset, packet, 6, size);
+
+        return packet;
+    }
+
+    /**
+     * Build a DATA packet whose data is still zeros, to be filled in place.
+     * 
+     * @param size        the size of the data.
+     * @param blockNumber the block number.
+     * @return the encoded packet.
+     */
+    public static byte[] dataHeader(int size, short blockNumber) {
+        byte[] packet = new byte[6 + size];
+
+        packet[0] = OpCodes.DATA.getBytes()[0];
+        packet[1] = OpCodes.DATA.getBytes()[1];
+        putShort(packet, 2, (short) size);
+        putShort(packet, 4, blockNumber);
+
+        return packet;
+    }
+
+    /**
+     * Get the ACK packet of a block number.
+     * The packet is shared, it must not be modified.
+     * 
+     * @param blockNumber the block number.
+     * @return the encoded packet.
+     */
+    public static byte[] ackPacket(short blockNumber) {
+        return AckPackets.PACKETS[blockNumber & 0xffff];
+    }
+
+    // every possible ACK packet (about 1.5MB), built the first time one is needed
+    private static class AckPackets {
+        private static final byte[][] PACKETS = new byte[1 << 16][];
+
+        static {
+            for (int i = 0; i < PACKETS.length; i++) {
+                PACKETS[i] = new byte[4];
+                PACKETS[i][0] = OpCodes.ACK.getBytes()[0];
+                PACKETS[i][1] = OpCodes.ACK.getBytes()[1];
+                putShort(PACKETS[i], 2, (short) i);
+            }
+        }
+    }
 }
\ No newline at end of file
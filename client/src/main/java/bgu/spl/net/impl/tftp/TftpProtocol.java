@@ -2,19 +2,41 @@ package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.MessagingProtocol;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class TftpProtocol implements MessagingProtocol<byte[]> {
     private boolean shouldTerminate = false;
     private short lastBlockNumber = 0;
-    private Queue<byte[]> packetsQueue = new ConcurrentLinkedQueue<>(); // packets that require ACK only
+    // the file of the current WRQ, read a block at a time as the window moves. null once it was all read
+    private ReadableByteChannel upload;
+    private FileChannel uploadFile; // under upload, which may compress it
+    private Deflater deflater; // of the current compressed WRQ
+    private FileChannel download; // the file of the current RRQ, open from its first block to its last
+    private Deque<byte[]> packetsInFlight = new ArrayDeque<>(); // packets that were sent and wait for an ACK
+    private int windowSize = TftpOptions.DEFAULT_WINDOW_SIZE; // as acknowledged by the server
+    private int blockSize = TftpOptions.DEFAULT_BLOCK_SIZE; // as acknowledged by the server
+    private long blocksReceived = 0; // of the current RRQ
+    private long startOffset = 0; // where the current RRQ starts in the file, as acknowledged by the server
+    private boolean compressed = false; // the current RRQ/WRQ carries a DEFLATE stream, as acknowledged by the server
+    private boolean deduplicated = false; // the server already has the content of the current WRQ
+    private Inflater inflater; // of the current compressed RRQ
+    private byte[] inflated; // inflated data on its way to the file
     private OpCodes lastKeyboardOptOpcode = OpCodes.UNKNOWN;
     private final String directoryPath = ""; // TODO: get current directory somethow?
     private String fileTransfered = "";
@@ -40,11 +62,27 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
             case BCAST:
                 handleBCAST(message);
                 break;
+            case OACK:
+                handleOACK(message);
+                break;
+            case OPT:
+                // sent by us before a RRQ/WRQ, nothing to remember until the server answers
+                break;
             case UNKNOWN:
                 response = createErrorMessage(Errors.NOT_DEFINED);
                 break;
             case RRQ:
             case WRQ:
+                // no window unless the server acknowledges one for this request
+                windowSize = TftpOptions.DEFAULT_WINDOW_SIZE;
+                blockSize = TftpOptions.DEFAULT_BLOCK_SIZE;
+                blocksReceived = 0;
+                startOffset = 0;
+                compressed = false;
+                deduplicated = false;
+                endInflater();
+                closeUpload();
+                closeDownload();
                 lastCommandArg = new String(message, 2, message.length - 3, StandardCharsets.UTF_8);
             default:
                 lastKeyboardOptOpcode = opcode;
@@ -59,26 +97,13 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
     }
 
     /**
-     * Create an error packet.
+     * Get an error packet.
      * 
      * @param err an error code in the form of an enum.
      * @return an error packet.
      */
     private byte[] createErrorMessage(Errors err) {
-        byte[] msg = err.getMessage().getBytes();
-        byte[] pac = new byte[5 + msg.length];
-
-        pac[0] = OpCodes.ERROR.getBytes()[0];
-        pac[1] = OpCodes.ERROR.getBytes()[1];
-        pac[2] = err.getBytes()[0];
-        pac[3] = err.getBytes()[1];
-
-        for (int i = 0; i < msg.length; i++)
-            pac[4 + i] = msg[i];
-
-        pac[pac.length - 1] = 0;
-
-        return pac;
+        return err.getPacket(); // shared, built once per error
     }
 
     /**
@@ -90,45 +115,39 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
     private byte[] handleACK(byte[] message) {
         short ackBlockNum = TftpEncoderDecoder.bytesToShort(message[2], message[3]);
         OpCodes commandOpCode; // the opcode of the command that required an ack message
-        byte[] lastSentPacket = null;
 
         System.out.println("ACK " + ackBlockNum);
 
         if (ackBlockNum == 0)
             commandOpCode = lastKeyboardOptOpcode;
-        else if (packetsQueue.isEmpty())
+        else if (!acknowledgePackets(ackBlockNum))
             return createErrorMessage(Errors.NOT_DEFINED);
-        else {
-            lastSentPacket = packetsQueue.peek();
-
-            // the type of the last messege sent.
-            commandOpCode = OpCodes.extractOpcode(lastSentPacket);
-        }
+        else
+            commandOpCode = OpCodes.DATA;
 
-        short packetBlockNum = commandOpCode == OpCodes.DATA
-                ? TftpEncoderDecoder.bytesToShort(lastSentPacket[4], lastSentPacket[5])
-                : 0;
         byte[] response = null;
-
-        if (packetBlockNum != ackBlockNum) {
-            // last massege blockNumber");
-            return createErrorMessage(Errors.NOT_DEFINED);
-        }
-
         String filename;
 
         switch (commandOpCode) {
             case WRQ:
                 filename = lastCommandArg;
-                addDataPackets(filename);
+                packetsInFlight.clear();
+
+                if (deduplicated) {
+                    // the server made the file from content it had, no DATA
+                    System.out.println("WRQ " + filename + " complete");
+                    break;
+                }
+
+                openUpload(filename);
                 fileTransfered = filename;
-                response = packetsQueue.peek();
+                response = nextWindow();
                 break;
             case DATA:
-                packetsQueue.remove();
-                response = packetsQueue.peek();
+                response = nextWindow();
 
-                if (response == null) {
+                if (packetsInFlight.isEmpty()) {
+                    closeUpload();
                     System.out.println("WRQ " + fileTransfered + " complete");
                     fileTransfered = "";
                 }
@@ -152,47 +171,132 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
     }
 
     /**
-     * Read a file into packets and insert them to the queue.
+     * Remove the packet with the given block number from the packets that wait
+     * for an ACK, with all the packets that were sent before it.
      * 
-     * @param filename
+     * @param blockNum the block number in the ACK.
+     * @return false if no packet that waits for an ACK has this block number.
+     */
+    private boolean acknowledgePackets(short blockNum) {
+        boolean found = false;
+
+        for (byte[] packet : packetsInFlight)
+            found |= TftpEncoderDecoder.bytesToShort(packet[4], packet[5]) == blockNum;
+
+        if (!found)
+            return false;
+
+        byte[] packet;
+
+        do {
+            packet = packetsInFlight.removeFirst();
+        } while (TftpEncoderDecoder.bytesToShort(packet[4], packet[5]) != blockNum);
+
+        return true;
+    }
+
+    /**
+     * Send packets until the window is full.
+     * 
+     * @return the packets to send, one after the other in a single array, or
+     *         null if there is nothing to send.
      */
-    private void addDataPackets(String filename) {
-        File fileToSend = new File(filename);
+    private byte[] nextWindow() {
+        Queue<byte[]> window = new ArrayDeque<>();
+        int windowBytes = 0;
+
+        while (packetsInFlight.size() < windowSize && upload != null) {
+            byte[] packet = nextDataPacket();
+
+            if (packet == null)
+                break; // could not read the file, the server will time out the upload
+
+            packetsInFlight.addLast(packet);
+            window.add(packet);
+            windowBytes += packet.length;
+        }
+
+        if (window.isEmpty())
+            return null;
+
+        byte[] response = new byte[windowBytes];
+        int offset = 0;
 
-        // System.out.println("Working Directory = " + System.getProperty("user.dir"));
-        // System.out.println("fts " + fileToSend);
+        for (byte[] packet : window) {
+            System.arraycopy(packet, 0, response, offset, packet.length);
+            offset += packet.length;
+        }
+
+        return response;
+    }
 
-        if (!fileToSend.exists())
+    /**
+     * Open the file of a WRQ, its blocks are read as they are sent.
+     * 
+     * @param filename
+     */
+    private void openUpload(String filename) {
+        lastBlockNumber = 0;
+
+        try {
+            uploadFile = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        } catch (IOException e) {
             System.out.println(Errors.FILE_NOT_FOUND.getMessage());
+            return;
+        }
 
-        try (FileInputStream fstream = new FileInputStream(fileToSend)) {
-            // System.out.println("adding packets");
-            ArrayDeque<Byte> packetData = new ArrayDeque<>();
-            int nextByte;
-            byte[] packet;
+        if (compressed) {
+            // a compressed upload sends the DEFLATE stream of the file instead of the file
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            upload = Channels.newChannel(new DeflaterInputStream(Channels.newInputStream(uploadFile), deflater));
+        } else {
+            upload = uploadFile;
+        }
+    }
 
-            lastBlockNumber = 0;
+    /**
+     * Read the next block of the upload.
+     * 
+     * @return the DATA packet, or null if the file could not be read.
+     */
+    private byte[] nextDataPacket() {
+        byte[] packet = TftpEncoderDecoder.dataHeader(blockSize, ++lastBlockNumber);
+        ByteBuffer data = ByteBuffer.wrap(packet, 6, blockSize);
+
+        try {
+            int read = 0;
+
+            while (data.hasRemaining() && read >= 0)
+                read = upload.read(data);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            closeUpload();
+            return null;
+        }
 
-            // read each byte
-            while ((nextByte = fstream.read()) != -1) {
-                packetData.add((byte) nextByte);
+        if (data.hasRemaining()) {
+            // a short block (might be an empty one) ends the file
+            packet = Arrays.copyOf(packet, data.position());
+            TftpEncoderDecoder.putShort(packet, 2, (short) (packet.length - 6));
+            closeUpload();
+        }
 
-                // if reached max num of bytes in a packet, create one
-                if (packetData.size() == TftpEncoderDecoder.MAX_DATA_PACKET) {
-                    packet = buildDataPacket(packetData, ++lastBlockNumber);
-                    packetsQueue.add(packet);
-                    packetData.clear();
-                    // System.out.println("packet added");
-                }
-            }
+        return packet;
+    }
 
-            // last packet
-            packet = buildDataPacket(packetData, ++lastBlockNumber);
-            packetsQueue.add(packet);
-            // System.out.println("packet added");
+    private void closeUpload() {
+        try {
+            if (uploadFile != null)
+                uploadFile.close();
         } catch (IOException ignored) {
-            System.out.println(ignored.getMessage());
         }
+
+        if (deflater != null)
+            deflater.end();
+
+        upload = null;
+        uploadFile = null;
+        deflater = null;
     }
 
     /**
@@ -203,23 +307,38 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
      */
     private byte[] handleData(byte[] packet) {
         short blockNumber = TftpEncoderDecoder.bytesToShort(packet[4], packet[5]);
-        short packetSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]);
+        int packetSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) & 0xffff; // up to 64K
         byte[] bytes;
-        File file;
 
         // case of the data package contain file.
         if (lastKeyboardOptOpcode == OpCodes.RRQ) {
-            file = new File(lastCommandArg);
-
-            try (FileOutputStream fStream = new FileOutputStream(file, true)) {
-                fStream.write(packet, 6, packet.length - 6);
-            } catch (IOException ignored) {
+            File file = new File(lastCommandArg);
+
+            try {
+                if (blocksReceived == 0)
+                    openDownload(file);
+
+                // straight from the packet to the file, unless it could not be opened
+                if (download != null && compressed)
+                    inflate(packet, 6, packet.length - 6);
+                else if (download != null)
+                    write(ByteBuffer.wrap(packet, 6, packet.length - 6));
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
             } finally {
-                if (packetSize < TftpEncoderDecoder.MAX_DATA_PACKET) {
+                if (packetSize < blockSize) {
+                    if (compressed && (inflater == null || !inflater.finished()))
+                        System.out.println("The compressed stream of " + file.getName() + " is incomplete");
+
+                    endInflater();
+                    closeDownload();
                     System.out.println("RRQ " + file.getName() + " complete");
-                    file = null; // the call for the file is finised.
                 }
             }
+
+            // with a window, only the last block of each window (and of the file) is acknowledged
+            if (++blocksReceived % windowSize != 0 && packetSize == blockSize)
+                return null;
         }
         // the data is a files' names.
         else {
@@ -254,6 +373,68 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
         return buildAckPacket(blockNumber);
     }
 
+    /**
+     * Open the file of a RRQ at its first block. A resumed download keeps what
+     * it has up to where the server starts, anything else starts over.
+     * 
+     * @param file the file.
+     */
+    private void openDownload(File file) throws IOException {
+        download = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        if (download.size() > startOffset)
+            download.truncate(startOffset);
+
+        download.position(download.size());
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining())
+            download.write(data);
+    }
+
+    private void closeDownload() {
+        try {
+            if (download != null)
+                download.close();
+        } catch (IOException ignored) {
+        }
+
+        download = null;
+    }
+
+    /**
+     * Inflate the next part of the compressed stream of the current RRQ into
+     * its file.
+     * 
+     * @param bytes  holds the part.
+     * @param offset where the part starts in bytes.
+     * @param length the size of the part.
+     */
+    private void inflate(byte[] bytes, int offset, int length) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflated = new byte[Math.max(blockSize, 1 << 13)];
+        }
+
+        inflater.setInput(bytes, offset, length);
+
+        try {
+            do {
+                write(ByteBuffer.wrap(inflated, 0, inflater.inflate(inflated)));
+            } while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary());
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed data: " + e.getMessage());
+        }
+    }
+
+    private void endInflater() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
     /**
      * Handle an error message.
      * 
@@ -264,9 +445,45 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
 
         String msg = new String(packet, 4, packet.length - 5, StandardCharsets.UTF_8);
 
+        // the transfer is over, if there was one
+        closeUpload();
+        closeDownload();
+        endInflater();
+
         System.out.println("Error " + errNum + " (" + msg + ")");
     }
 
+    /**
+     * Handle an option that was acknowledged by the server.
+     * 
+     * @param message the OACK packet.
+     */
+    private void handleOACK(byte[] message) {
+        String name = TftpOptions.getName(message);
+        String value = TftpOptions.getValue(message);
+
+        if (name.equals(TftpOptions.WINDOW_SIZE)) {
+            int acknowledged = TftpOptions.parseInt(value, 1, TftpOptions.MAX_WINDOW_SIZE);
+
+            if (acknowledged > 0)
+                windowSize = acknowledged;
+        } else if (name.equals(TftpOptions.OFFSET)) {
+            long acknowledged = TftpOptions.parseLong(value, 0, Long.MAX_VALUE);
+
+            if (acknowledged > 0)
+                startOffset = acknowledged;
+        } else if (name.equals(TftpOptions.DEDUP)) {
+            deduplicated = true;
+        } else if (name.equals(TftpOptions.COMPRESS)) {
+            compressed = value.equalsIgnoreCase(TftpOptions.DEFLATE);
+        } else if (name.equals(TftpOptions.BLOCK_SIZE)) {
+            int acknowledged = TftpOptions.parseInt(value, TftpOptions.MIN_BLOCK_SIZE, TftpOptions.MAX_BLOCK_SIZE);
+
+            if (acknowledged > 0)
+                blockSize = acknowledged;
+        }
+    }
+
     /**
      * Handle a BCAST packet.
      * 
@@ -287,50 +504,12 @@ public class TftpProtocol implements MessagingProtocol<byte[]> {
     }
 
     /**
-     * Get a message and wrap it with a DATA packet header.
-     * 
-     * @param bytes    an array of bytes that are the message.
-     * @param blockNum the block number of this packet.
-     * @return a byte array.
-     */
-    private byte[] buildDataPacket(ArrayDeque<Byte> bytes, short blockNum) {
-        byte[] packet = new byte[6 + bytes.size()];
-        int bytesSize = bytes.size();
-
-        // opcode
-        packet[0] = OpCodes.DATA.getBytes()[0];
-        packet[1] = OpCodes.DATA.getBytes()[1];
-
-        // packet size
-        packet[2] = TftpEncoderDecoder.shortToBytes((short) bytes.size())[0];
-        packet[3] = TftpEncoderDecoder.shortToBytes((short) bytes.size())[1];
-
-        // block no.
-        packet[4] = TftpEncoderDecoder.shortToBytes(blockNum)[0];
-        packet[5] = TftpEncoderDecoder.shortToBytes(blockNum)[1];
-
-        // add the bytes
-        for (int j = 0; j < bytesSize; j++)
-            packet[6 + j] = bytes.removeFirst();
-
-        return packet;
-    }
-
-    /**
-     * uild an ACK packet with a given block number.
+     * Get the ACK packet of a given block number.
      * 
      * @param blockNum
      * @return a byte array.
      */
     private byte[] buildAckPacket(short blockNum) {
-        byte[] packet = new byte[4];
-        byte[] block = TftpEncoderDecoder.shortToBytes(blockNum);
-
-        packet[0] = OpCodes.ACK.getBytes()[0];
-        packet[1] = OpCodes.ACK.getBytes()[1];
-        packet[2] = block[0];
-        packet[3] = block[1];
-
-        return packet;
+        return TftpEncoderDecoder.ackPacket(blockNum); // shared, built once per block number
     }
 }
@@ -0,0 +1,69 @@
+package bgu.spl.net.impl.tftp.load;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import bgu.spl.net.impl.tftp.ParallelDownloader;
+import bgu.spl.net.impl.tftp.TftpOptions;
+
+/**
+ * Checks that a file downloaded with the ParallelDownloader is the file that
+ * was uploaded, with a window of several blocks, so a read from the socket
+ * holds several DATA packets. Uploads a random file, downloads it into the
+ * current directory, compares them and deletes both.
+ * Configured with system properties:
+ * -Dtftp.check.connections=4 connections to download with,
+ * -Dtftp.check.windowsize=8 blocks in a window,
+ * -Dtftp.check.fileSize=1000000 bytes of the file.
+ * It exits with 1 if the downloaded file differs.
+ * Run with: java -cp client/target/classes bgu.spl.net.impl.tftp.load.DownloadCheck [host] [port]
+ */
+public class DownloadCheck {
+    private static final String USERNAME = "download-check";
+
+    public static void main(String[] args) throws IOException {
+        // usage: DownloadCheck [host] [port]
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        int connections = Integer.getInteger("tftp.check.connections", 4);
+        int windowSize = Integer.getInteger("tftp.check.windowsize", 8);
+        int fileSize = Integer.getInteger("tftp.check.fileSize", 1_000_000);
+        String filename = USERNAME + "-" + System.nanoTime() + ".bin";
+        byte[] file = new byte[fileSize];
+
+        new Random(fileSize).nextBytes(file);
+
+        LoadSession session = new LoadSession(host, port);
+
+        session.connect();
+        session.login(USERNAME);
+        session.write(filename, LoadSession.dataPackets(file));
+
+        Path downloaded = Paths.get(filename);
+        boolean identical;
+
+        try {
+            Map<String, String> options = Collections.singletonMap(TftpOptions.WINDOW_SIZE,
+                    Integer.toString(windowSize));
+
+            new ParallelDownloader(host, port, connections, options).download(USERNAME, filename);
+            identical = Arrays.equals(file, Files.readAllBytes(downloaded));
+        } finally {
+            Files.deleteIfExists(downloaded);
+            session.delete(filename);
+            session.disconnect();
+        }
+
+        System.out.printf("%d bytes over %d connections, window of %d blocks: %s%n", fileSize, connections,
+                windowSize, identical ? "identical" : "DIFFERENT");
+
+        if (!identical)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,271 @@
+package bgu.spl.net.impl.tftp.load;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import bgu.spl.net.impl.tftp.OpCodes;
+
+/**
+ * A headless load generator. Runs a number of concurrent sessions against a
+ * server, each sending a random mix of requests, and reports the throughput
+ * and the latency percentiles of each kind of request.
+ * Configured with system properties:
+ * -Dtftp.load.sessions=16 concurrent sessions,
+ * -Dtftp.load.duration=30 seconds,
+ * -Dtftp.load.mix=RRQ:40,WRQ:20,DIRQ:20,DELRQ:15,LOGRQ:5 weights of the requests,
+ * -Dtftp.load.fileSize=65536 bytes of each downloaded and uploaded file.
+ * An RRQ downloads a file the session uploaded when it started, a DELRQ deletes
+ * the last file the session uploaded (an upload is made first if there is
+ * none), and a LOGRQ disconnects and logs in again on a new connection.
+ * Run with: java -cp client/target/classes bgu.spl.net.impl.tftp.load.LoadGenerator [host] [port]
+ */
+public class LoadGenerator {
+    private static final OpCodes[] REQUESTS = { OpCodes.RRQ, OpCodes.WRQ, OpCodes.DIRQ, OpCodes.DELRQ,
+            OpCodes.LOGRQ };
+
+    private final String host;
+    private final int port;
+    private final int fileSize;
+    private final Map<OpCodes, Integer> mix;
+    private final int totalWeight;
+
+    public LoadGenerator(String host, int port, int fileSize, Map<OpCodes, Integer> mix) {
+        this.host = host;
+        this.port = port;
+        this.fileSize = fileSize;
+        this.mix = mix;
+
+        int weights = 0;
+
+        for (int weight : mix.values())
+            weights += weight;
+
+        if (weights <= 0)
+            throw new IllegalArgumentException("the request mix is empty");
+
+        this.totalWeight = weights;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // usage: LoadGenerator [host] [port]
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7777;
+        int sessions = Integer.getInteger("tftp.load.sessions", 16);
+        int duration = Integer.getInteger("tftp.load.duration", 30);
+        int fileSize = Integer.getInteger("tftp.load.fileSize", 1 << 16);
+        Map<OpCodes, Integer> mix = parseMix(System.getProperty("tftp.load.mix",
+                "RRQ:40,WRQ:20,DIRQ:20,DELRQ:15,LOGRQ:5"));
+
+        System.out.printf("%d sessions for %ds against %s:%d, files of %d bytes, mix %s%n",
+                sessions, duration, host, port, fileSize, mix);
+
+        new LoadGenerator(host, port, fileSize, mix).run(sessions, duration * 1000L);
+    }
+
+    /**
+     * Run the sessions and print the report.
+     *
+     * @param sessions       the number of concurrent sessions.
+     * @param durationMillis how long to send requests for.
+     */
+    public void run(int sessions, long durationMillis) throws InterruptedException {
+        List<Map<OpCodes, OpStats>> sessionStats = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        long deadline = start + durationMillis * 1_000_000;
+
+        for (int i = 0; i < sessions; i++) {
+            Map<OpCodes, OpStats> stats = newStats();
+            int id = i;
+
+            sessionStats.add(stats);
+            threads.add(new Thread(() -> runSession(id, deadline, stats), "load-" + i));
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Map<OpCodes, OpStats> total = newStats();
+
+        for (Map<OpCodes, OpStats> stats : sessionStats)
+            for (OpCodes opcode : REQUESTS)
+                total.get(opcode).merge(stats.get(opcode));
+
+        report(total, seconds);
+    }
+
+    private void runSession(int id, long deadline, Map<OpCodes, OpStats> stats) {
+        String username = "load-" + id + "-" + System.nanoTime(); // unique across runs too
+        String seedFile = username + ".seed";
+        byte[] file = new byte[fileSize];
+        Deque<String> uploaded = new ArrayDeque<>();
+        int uploads = 0;
+        int logins = 0;
+        LoadSession session = new LoadSession(host, port);
+
+        new Random(id).nextBytes(file);
+        byte[][] packets = LoadSession.dataPackets(file);
+
+        try {
+            session.connect();
+            session.login(username);
+            session.write(seedFile, packets);
+        } catch (IOException e) {
+            System.out.println(username + " could not start: " + e.getMessage());
+            session.close();
+            return;
+        }
+
+        while (System.nanoTime() < deadline) {
+            OpCodes request = pickRequest();
+
+            if (request == OpCodes.DELRQ && uploaded.isEmpty())
+                request = OpCodes.WRQ; // nothing to delete yet
+
+            String uploadName = username + "-" + uploads + ".bin";
+            long sent = System.nanoTime();
+
+            try {
+                long transferred = 0;
+
+                switch (request) {
+                    case RRQ:
+                        transferred = session.read(seedFile);
+                        break;
+                    case WRQ:
+                        session.write(uploadName, packets);
+                        uploaded.push(uploadName);
+                        uploads++;
+                        transferred = fileSize;
+                        break;
+                    case DIRQ:
+                        transferred = session.listDirectory();
+                        break;
+                    case DELRQ:
+                        session.delete(uploaded.pop());
+                        break;
+                    default: // LOGRQ
+                        session.disconnect();
+                        sent = System.nanoTime(); // the DISC is not part of the login
+                        session.connect();
+                        // a new name, the server might not have logged the old one out yet
+                        session.login(username + "-" + ++logins);
+                }
+
+                stats.get(request).success(System.nanoTime() - sent, transferred);
+            } catch (LoadSession.ErrorReply e) {
+                stats.get(request).error();
+            } catch (IOException e) {
+                stats.get(request).error();
+
+                // the connection is broken, start over on a new one
+                try {
+                    session.close();
+                    session.connect();
+                    session.login(username + "-" + ++logins);
+                } catch (IOException again) {
+                    System.out.println(username + " lost its connection: " + again.getMessage());
+                    session.close();
+                    return;
+                }
+            }
+        }
+
+        // leave the server's directory as it was
+        try {
+            for (String name : uploaded)
+                session.delete(name);
+
+            session.delete(seedFile);
+            session.disconnect();
+        } catch (IOException e) {
+            session.close();
+        }
+    }
+
+    private OpCodes pickRequest() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+
+        for (Map.Entry<OpCodes, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+
+            if (pick < 0)
+                return entry.getKey();
+        }
+
+        throw new IllegalStateException("unreachable");
+    }
+
+    private static Map<OpCodes, OpStats> newStats() {
+        Map<OpCodes, OpStats> stats = new EnumMap<>(OpCodes.class);
+
+        for (OpCodes opcode : REQUESTS)
+            stats.put(opcode, new OpStats());
+
+        return stats;
+    }
+
+    private static void report(Map<OpCodes, OpStats> total, double seconds) {
+        long requests = 0;
+        long bytes = 0;
+
+        System.out.printf("%-6s %10s %10s %8s %10s %10s %10s %10s%n",
+                "", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "MB/s");
+
+        for (OpCodes opcode : REQUESTS) {
+            OpStats stats = total.get(opcode);
+
+            if (stats.getCount() == 0 && stats.getErrors() == 0)
+                continue;
+
+            requests += stats.getCount();
+            bytes += stats.getBytes();
+
+            System.out.printf("%-6s %10d %10.1f %8d %10.3f %10.3f %10.3f %10.2f%n",
+                    opcode, stats.getCount(), stats.getCount() / seconds, stats.getErrors(),
+                    stats.percentile(0.5), stats.percentile(0.99), stats.percentile(0.999),
+                    stats.getBytes() / seconds / (1 << 20));
+        }
+
+        System.out.printf("total  %10d %10.1f %8s %10s %10s %10s %10.2f%n",
+                requests, requests / seconds, "", "", "", "", bytes / seconds / (1 << 20));
+    }
+
+    /**
+     * @param mix e.g. "RRQ:40,WRQ:20".
+     * @return the weight of each request.
+     */
+    static Map<OpCodes, Integer> parseMix(String mix) {
+        Map<OpCodes, Integer> weights = new EnumMap<>(OpCodes.class);
+
+        for (String part : mix.split(",")) {
+            String[] request = part.trim().split(":");
+            OpCodes opcode = OpCodes.fromString(request[0].trim().toUpperCase());
+            int weight = request.length > 1 ? Integer.parseInt(request[1].trim()) : 1;
+
+            boolean supported = false;
+
+            for (OpCodes supportedRequest : REQUESTS)
+                supported |= supportedRequest == opcode;
+
+            if (!supported)
+                throw new IllegalArgumentException("unsupported request in the mix: " + part);
+
+            if (weight > 0)
+                weights.put(opcode, weight);
+        }
+
+        return weights;
+    }
+}
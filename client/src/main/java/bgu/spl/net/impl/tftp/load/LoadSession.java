@@ -0,0 +1,239 @@
+package bgu.spl.net.impl.tftp.load;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import bgu.spl.net.impl.tftp.Errors;
+import bgu.spl.net.impl.tftp.OpCodes;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+
+/**
+ * A headless client connection that runs one request at a time and waits for
+ * its whole answer. Broadcasts from the server are skipped. The stream is read
+ * a buffer at a time and framed in bulk, and every packet of the answer is
+ * handled inside the decoder's consumer: the decoder reuses its packets.
+ */
+class LoadSession {
+    private final String host;
+    private final int port;
+    private final TftpEncoderDecoder encdec = new TftpEncoderDecoder();
+    private final byte[] readBuffer = new byte[1 << 16];
+    private final Consumer<byte[]> consumer = this::handle;
+    // the answer that is being received
+    private Reply reply;
+    private boolean replied;
+    private IOException failure; // thrown by the reply, or the ERROR the server answered
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    LoadSession(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    void connect() throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream(); // read a buffer at a time, see await
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    void close() {
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException ignored) {
+        }
+
+        socket = null;
+    }
+
+    void login(String username) throws IOException {
+        send(request(OpCodes.LOGRQ, username));
+        expectAck((short) 0);
+    }
+
+    /**
+     * Download a file.
+     *
+     * @return the number of bytes received.
+     */
+    long read(String filename) throws IOException {
+        send(request(OpCodes.RRQ, filename));
+
+        return receiveData();
+    }
+
+    /**
+     * Upload a file.
+     *
+     * @param packets the DATA packets of the file (see dataPackets).
+     */
+    void write(String filename, byte[][] packets) throws IOException {
+        send(request(OpCodes.WRQ, filename));
+        expectAck((short) 0);
+
+        for (byte[] packet : packets) {
+            send(packet);
+            expectAck(TftpEncoderDecoder.bytesToShort(packet[4], packet[5]));
+        }
+    }
+
+    /**
+     * @return the number of listing bytes received.
+     */
+    long listDirectory() throws IOException {
+        send(OpCodes.DIRQ.getBytes());
+
+        return receiveData();
+    }
+
+    void delete(String filename) throws IOException {
+        send(request(OpCodes.DELRQ, filename));
+        expectAck((short) 0);
+    }
+
+    void disconnect() throws IOException {
+        send(OpCodes.DISC.getBytes());
+        expectAck((short) 0);
+        close();
+    }
+
+    /**
+     * Split a file into DATA packets of the default block size.
+     */
+    static byte[][] dataPackets(byte[] file) {
+        int blockSize = TftpEncoderDecoder.MAX_DATA_PACKET;
+        byte[][] packets = new byte[file.length / blockSize + 1][];
+
+        for (int i = 0; i < packets.length; i++) {
+            int offset = i * blockSize;
+            int size = Math.min(blockSize, file.length - offset);
+            byte[] packet = new byte[6 + size];
+
+            packet[0] = OpCodes.DATA.getBytes()[0];
+            packet[1] = OpCodes.DATA.getBytes()[1];
+            TftpEncoderDecoder.putShort(packet, 2, (short) size);
+            TftpEncoderDecoder.putShort(packet, 4, (short) (i + 1));
+            System.arraycopy(file, offset, packet, 6, size);
+            packets[i] = packet;
+        }
+
+        return packets;
+    }
+
+    // DATA packets until a short one, each one acknowledged
+    private long receiveData() throws IOException {
+        long[] received = { 0 };
+
+        await(packet -> {
+            if (OpCodes.extractOpcode(packet) != OpCodes.DATA)
+                throw new IOException("expected DATA, got " + OpCodes.extractOpcode(packet));
+
+            int size = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) & 0xffff;
+
+            received[0] += size;
+            send(TftpEncoderDecoder.ackPacket(TftpEncoderDecoder.bytesToShort(packet[4], packet[5])));
+
+            return size < TftpEncoderDecoder.MAX_DATA_PACKET;
+        });
+
+        return received[0];
+    }
+
+    private void expectAck(short blockNumber) throws IOException {
+        await(packet -> {
+            if (OpCodes.extractOpcode(packet) != OpCodes.ACK
+                    || TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) != blockNumber)
+                throw new IOException("expected ACK " + blockNumber + ", got " + OpCodes.extractOpcode(packet));
+
+            return true;
+        });
+    }
+
+    /**
+     * Receive an answer, until it is complete.
+     *
+     * @param reply handles the packets of the answer that are not broadcasts.
+     * @throws ErrorReply if the server answered with an ERROR packet.
+     */
+    private void await(Reply reply) throws IOException {
+        this.reply = reply;
+        replied = false;
+        failure = null;
+
+        while (!replied && failure == null) {
+            int read = in.read(readBuffer);
+
+            if (read < 0)
+                throw new EOFException("the server closed the connection");
+
+            encdec.decode(ByteBuffer.wrap(readBuffer, 0, read), consumer);
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    // the decoder's consumer, the packet is only valid until it returns
+    private void handle(byte[] packet) {
+        OpCodes opcode = OpCodes.extractOpcode(packet);
+
+        if (opcode == OpCodes.BCAST || replied || failure != null)
+            return; // nothing else is expected once the answer is complete
+
+        try {
+            if (opcode == OpCodes.ERROR)
+                throw new ErrorReply(Errors.fromBytes(packet[2], packet[3]));
+
+            replied = reply.handle(packet);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void send(byte[] packet) throws IOException {
+        out.write(packet);
+        out.flush();
+    }
+
+    private static byte[] request(OpCodes opcode, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[3 + nameBytes.length];
+
+        packet[0] = opcode.getBytes()[0];
+        packet[1] = opcode.getBytes()[1];
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+
+        return packet;
+    }
+
+    /** Handles the packets of an answer, one at a time. */
+    private interface Reply {
+        /**
+         * @param packet the next packet, only valid until this returns.
+         * @return true iff the answer is complete.
+         */
+        boolean handle(byte[] packet) throws IOException;
+    }
+
+    /**
+     * The server answered a request with an ERROR packet, the connection is
+     * still usable.
+     */
+    static class ErrorReply extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ErrorReply(Errors error) {
+            super("ERROR " + error);
+        }
+    }
+}
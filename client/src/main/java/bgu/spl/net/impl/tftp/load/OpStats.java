@@ -0,0 +1,64 @@
+package bgu.spl.net.impl.tftp.load;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of one kind of request. Each session keeps its own, they are
+ * merged for the report.
+ */
+class OpStats {
+    private long[] latencies = new long[1024]; // nanoseconds, of the successful requests
+    private int count = 0;
+    private long errors = 0;
+    private long bytes = 0; // of file data transferred
+
+    void success(long latencyNanos, long transferred) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+
+        latencies[count++] = latencyNanos;
+        bytes += transferred;
+    }
+
+    void error() {
+        errors++;
+    }
+
+    void merge(OpStats other) {
+        if (count + other.count > latencies.length)
+            latencies = Arrays.copyOf(latencies, count + other.count);
+
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        errors += other.errors;
+        bytes += other.bytes;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getErrors() {
+        return errors;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for p99.
+     * @return the latency in milliseconds, 0 if there were no requests.
+     */
+    double percentile(double fraction) {
+        if (count == 0)
+            return 0;
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(fraction * count) - 1;
+
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -25,4 +25,11 @@ public interface BidiMessagingProtocol<T> {
      * @return true if the connection should be terminated.
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once the connection was closed (by either side), after the last
+     * message was processed, so resources held for the client can be released.
+     */
+    default void onClose() {
+    }
 }
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,22 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of a buffer to the decoding process
+     *
+     * @param in  a buffer ready to be read, all of its remaining bytes are
+     * consumed
+     * @param out receives every message completed by these bytes, in order
+     */
+    default void decode(ByteBuffer in, Consumer<T> out) {
+        while (in.hasRemaining()) {
+            T message = decodeNextByte(in.get());
+
+            if (message != null)
+                out.accept(message);
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
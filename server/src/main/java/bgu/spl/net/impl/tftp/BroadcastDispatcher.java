@@ -0,0 +1,104 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.srv.Connections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sends BCAST packets to all the logged in users, off the request path.
+ * The caller only queues the packet. A dispatcher thread splits the users
+ * between the fan-out threads, always giving a user to the same thread, so
+ * every user gets the broadcasts in the order they were made. Sending only
+ * queues the packet for each user (see OutboundQueue), and users that don't
+ * read them are dropped or disconnected by the outbound policy, so a slow
+ * user never holds the others up.
+ */
+public class BroadcastDispatcher {
+    private final BlockingQueue<Broadcast> broadcasts = new LinkedBlockingQueue<>();
+    private final List<BlockingQueue<Delivery>> deliveries = new ArrayList<>(); // one per fan-out thread
+
+    /**
+     * @param threads the number of fan-out threads.
+     */
+    public BroadcastDispatcher(int threads) {
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+
+            deliveries.add(queue);
+            startDaemon("bcast-fanout-" + i, () -> fanOut(queue));
+        }
+
+        startDaemon("bcast-dispatcher", this::dispatch);
+    }
+
+    /**
+     * Send a packet to all the logged in users. Returns immediately.
+     *
+     * @param connections the connections to send through.
+     * @param packet      the packet, it must not be modified afterwards.
+     */
+    public void broadcast(Connections<byte[]> connections, byte[] packet) {
+        broadcasts.add(new Broadcast(connections, packet));
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Broadcast broadcast = broadcasts.take();
+                List<List<Integer>> recipients = new ArrayList<>(deliveries.size());
+
+                for (int i = 0; i < deliveries.size(); i++)
+                    recipients.add(new ArrayList<>());
+
+                for (Integer connectionId : PublicResources.sessions.getConnectionIds())
+                    recipients.get(Math.floorMod(connectionId, deliveries.size())).add(connectionId);
+
+                for (int i = 0; i < deliveries.size(); i++)
+                    if (!recipients.get(i).isEmpty())
+                        deliveries.get(i).add(new Delivery(broadcast, recipients.get(i)));
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void fanOut(BlockingQueue<Delivery> queue) {
+        try {
+            while (true) {
+                Delivery delivery = queue.take();
+
+                for (Integer connectionId : delivery.recipients)
+                    delivery.broadcast.connections.send(connectionId, delivery.broadcast.packet);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+
+        thread.setDaemon(true); // don't keep the server alive
+        thread.start();
+    }
+
+    private static class Broadcast {
+        private final Connections<byte[]> connections;
+        private final byte[] packet;
+
+        Broadcast(Connections<byte[]> connections, byte[] packet) {
+            this.connections = connections;
+            this.packet = packet;
+        }
+    }
+
+    private static class Delivery {
+        private final Broadcast broadcast;
+        private final List<Integer> recipients;
+
+        Delivery(Broadcast broadcast, List<Integer> recipients) {
+            this.broadcast = broadcast;
+            this.recipients = recipients;
+        }
+    }
+}
@@ -1,40 +1,81 @@
 package bgu.spl.net.impl.tftp;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
 
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ServerMetrics;
 
 public class ConnectionsImpl<T> implements Connections<T> {
     public final ConcurrentHashMap<Integer, ConnectionHandler<T>> connectionsMap = new ConcurrentHashMap<>();
 
     @Override
     public boolean connect(int connectionId, ConnectionHandler<T> handler) {
-        if (connectionsMap.containsKey(connectionId))
+        return connectionsMap.putIfAbsent(connectionId, handler) == null;
+    }
+
+    @Override
+    public boolean send(int connectionId, T msg) {
+        ConnectionHandler<T> handler = connectionsMap.get(connectionId);
+
+        if (handler == null)
             return false;
 
-        connectionsMap.put(connectionId, handler);
+        handler.send(msg);
+        ServerMetrics.INSTANCE.messageSent();
 
         return true;
     }
 
     @Override
-    public boolean send(int connectionId, T msg) {
-        if (!connectionsMap.containsKey(connectionId))
+    public boolean send(int connectionId, T header, FileChannel file, long position, long count) {
+        ConnectionHandler<T> handler = connectionsMap.get(connectionId);
+
+        if (handler == null)
             return false;
 
+        handler.send(header, file, position, count);
+        ServerMetrics.INSTANCE.messageSent();
+
+        return true;
+    }
+
+    @Override
+    public void closeAfterSent(int connectionId, Closeable resource) {
         ConnectionHandler<T> handler = connectionsMap.get(connectionId);
 
-        handler.send(msg);
+        if (handler != null) {
+            handler.closeAfterSent(resource);
+            return;
+        }
 
-        return true;
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+        }
     }
 
     @Override
     public void disconnect(int connectionId) {
         connectionsMap.remove(connectionId);
-        PublicResources.usersMap.remove(connectionId);
+        PublicResources.sessions.logout(connectionId);
+    }
+
+    @Override
+    public void close(int connectionId) {
+        ConnectionHandler<T> handler = connectionsMap.get(connectionId);
+
+        if (handler == null)
+            return;
+
+        try {
+            handler.close();
+        } catch (IOException ignored) {
+        }
     }
 
     private static void printBytes(byte[] bytes) {
@@ -0,0 +1,189 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SHA-256 hashes of the files in the FileStore, to find a file by its
+ * content, so an upload of content the server already has is done locally
+ * (see TftpOptions.SHA256). Uploads are hashed as their blocks arrive (see
+ * WriteTransfer) and added once they are published. Files that were there
+ * before the server started are hashed once, by indexExistingFiles. Like in the
+ * FileCache, an entry is used only while the file still has the size and
+ * modification time it had when it was hashed.
+ */
+public class ContentIndex {
+    private final FileStore store;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, Set<String>> byHash = new HashMap<>(); // names of the files with each hash
+
+    public ContentIndex(FileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Hash the files in the store that are not indexed yet. Slow, meant to run
+     * once in the background.
+     */
+    public void indexExistingFiles() {
+        List<String> filenames;
+
+        try {
+            filenames = store.list();
+        } catch (IOException e) {
+            return; // nothing to index
+        }
+
+        for (String filename : filenames) {
+            // the attributes are read first, a file that changes meanwhile won't match them
+            FileStore.Attributes attributes = store.stat(filename);
+
+            if (attributes == null || isIndexed(filename))
+                continue;
+
+            try {
+                add(filename, new Entry(hash(filename), attributes));
+            } catch (IOException ignored) {
+                // deleted meanwhile
+            }
+        }
+    }
+
+    /**
+     * Add a file that was created in the store.
+     *
+     * @param filename the name of the file.
+     * @param hash     the SHA-256 of its content, in hex.
+     */
+    public void fileAdded(String filename, String hash) {
+        FileStore.Attributes attributes = store.stat(filename);
+
+        if (attributes != null)
+            add(filename, new Entry(hash, attributes));
+    }
+
+    /**
+     * Remove a file that was deleted from the store.
+     *
+     * @param filename the name of the file.
+     */
+    public synchronized void fileRemoved(String filename) {
+        Entry entry = byName.remove(filename);
+
+        if (entry == null)
+            return;
+
+        Set<String> names = byHash.get(entry.hash);
+
+        names.remove(filename);
+
+        if (names.isEmpty())
+            byHash.remove(entry.hash);
+    }
+
+    /**
+     * Find a file by its content. Check it with isCurrent, with the read lock of
+     * the file, before using it.
+     *
+     * @param hash the SHA-256 of the content, in hex.
+     * @return the name of a file with this content, or null if there is none.
+     */
+    public synchronized String find(String hash) {
+        Set<String> names = byHash.get(hash);
+
+        return names == null ? null : names.iterator().next();
+    }
+
+    /**
+     * Check that a file still has the content it was indexed with, and drop it
+     * from the index if it does not.
+     *
+     * @param filename the name of the file.
+     * @param hash     the SHA-256 it was found by.
+     * @return true iff the file has this content.
+     */
+    public boolean isCurrent(String filename, String hash) {
+        Entry entry;
+
+        synchronized (this) {
+            entry = byName.get(filename);
+        }
+
+        if (entry == null || !entry.hash.equals(hash))
+            return false;
+
+        FileStore.Attributes attributes = store.stat(filename);
+
+        if (attributes != null && attributes.getSize() == entry.size && attributes.getModified() == entry.modified)
+            return true;
+
+        fileRemoved(filename);
+        return false;
+    }
+
+    private synchronized boolean isIndexed(String filename) {
+        return byName.containsKey(filename);
+    }
+
+    private synchronized void add(String filename, Entry entry) {
+        fileRemoved(filename); // a new file with an old name
+
+        byName.put(filename, entry);
+        byHash.computeIfAbsent(entry.hash, hash -> new LinkedHashSet<>()).add(filename);
+    }
+
+    /**
+     * @return a new SHA-256 digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has SHA-256", e);
+        }
+    }
+
+    /**
+     * @return the digest in the form it is sent in (lower case hex).
+     */
+    static String toHex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    private String hash(String filename) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        try (FileStore.StoredFile file = store.open(filename)) {
+            long position = 0;
+            int read;
+
+            while ((read = file.read(buffer.clear(), position)) > 0) {
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static class Entry {
+        private final String hash;
+        private final long size;
+        private final long modified;
+
+        Entry(String hash, FileStore.Attributes attributes) {
+            this.hash = hash;
+            this.size = attributes.getSize();
+            this.modified = attributes.getModified();
+        }
+    }
+}
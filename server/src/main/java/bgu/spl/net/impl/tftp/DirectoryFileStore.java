@@ -0,0 +1,174 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The files of a directory on disk.
+ * An upload is written to a hidden temporary file in the directory, and is
+ * renamed to its real name when it is published.
+ */
+public class DirectoryFileStore implements FileStore {
+    // temporary files start with this prefix, they are not listed and can't be uploaded
+    static final String TEMP_PREFIX = ".upload-";
+
+    private final Path directory;
+
+    public DirectoryFileStore(String directoryPath) {
+        this.directory = Paths.get(directoryPath);
+    }
+
+    @Override
+    public Attributes stat(String filename) {
+        if (isReserved(filename))
+            return null; // an upload that is not complete yet
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(directory.resolve(filename),
+                    BasicFileAttributes.class);
+
+            return attributes.isRegularFile()
+                    ? new Attributes(attributes.size(), attributes.lastModifiedTime().toMillis())
+                    : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StoredFile open(String filename) throws IOException {
+        if (isReserved(filename))
+            throw new NoSuchFileException(filename);
+
+        return new DirectoryFile(FileChannel.open(directory.resolve(filename), StandardOpenOption.READ));
+    }
+
+    @Override
+    public Upload create(String filename) throws IOException {
+        Files.createDirectories(directory);
+
+        return new DirectoryUpload(directory.resolve(filename), Files.createTempFile(directory, TEMP_PREFIX, ".part"));
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        Path path = directory.resolve(filename);
+
+        return !isReserved(filename) && Files.isRegularFile(path) && Files.deleteIfExists(path);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<>();
+
+        if (!Files.isDirectory(directory))
+            return names; // nothing was uploaded yet
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String filename = path.getFileName().toString();
+
+                if (!isReserved(filename))
+                    names.add(filename);
+            }
+        }
+
+        return names;
+    }
+
+    @Override
+    public boolean isReserved(String filename) {
+        return filename.startsWith(TEMP_PREFIX);
+    }
+
+    private static class DirectoryFile implements StoredFile {
+        private final FileChannel channel;
+
+        DirectoryFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public FileChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private class DirectoryUpload implements Upload {
+        private final Path target;
+        private final Path temp;
+        private FileChannel channel; // null once the content is complete
+
+        DirectoryUpload(Path target, Path temp) throws IOException {
+            this.target = target;
+            this.temp = temp;
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+
+        @Override
+        public void copyOf(String filename) throws IOException {
+            Path source = directory.resolve(filename);
+
+            closeChannel();
+            Files.delete(temp);
+
+            // files are never modified once they are published, a link is as good as a copy
+            try {
+                Files.createLink(temp, source);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(source, temp);
+            }
+        }
+
+        @Override
+        public void publish() throws IOException {
+            closeChannel();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeChannel();
+            Files.deleteIfExists(temp); // gone already if it was published
+        }
+
+        private void closeChannel() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The DIRQ answer, shared by all the clients.
+ * The files are listed once, later uploads and deletions patch the list of
+ * names. The names are encoded into DATA packets only when someone asks for
+ * them after a change, and the packets are never modified, so any number of
+ * clients may send them at the same time.
+ */
+public class DirectoryListing {
+    private final FileStore store;
+    // not synchronized, a virtual thread that lists the store must not hold a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+    private Set<String> names; // null until the files are listed
+    private volatile List<byte[]> packets; // null if the names changed since they were encoded
+
+    public DirectoryListing(FileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the DATA packets of the listing, numbered from 1. The last one is
+     *         shorter than a full block (might be empty).
+     */
+    public List<byte[]> getPackets() {
+        List<byte[]> current = packets;
+
+        return current != null ? current : encode();
+    }
+
+    /**
+     * Add a file that was created in the directory.
+     *
+     * @param filename the name of the file.
+     */
+    public void fileAdded(String filename) {
+        lock.lock();
+
+        try {
+            if (names != null && names.add(filename))
+                packets = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a file that was deleted from the directory.
+     *
+     * @param filename the name of the file.
+     */
+    public void fileRemoved(String filename) {
+        lock.lock();
+
+        try {
+            if (names != null && names.remove(filename))
+                packets = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<byte[]> encode() {
+        lock.lock();
+
+        try {
+            if (packets != null)
+                return packets; // encoded by another thread while we waited
+
+            if (names == null) {
+                try {
+                    names = new LinkedHashSet<>(store.list());
+                } catch (IOException e) {
+                    // like an empty directory, but names stays null so the next DIRQ lists it again
+                    return toPackets(Collections.emptySet());
+                }
+            }
+
+            packets = toPackets(names);
+
+            return packets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the names separated by zeros, in DATA packets.
+     */
+    private static List<byte[]> toPackets(Set<String> names) {
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+
+        for (String name : names) {
+            if (listing.size() > 0)
+                listing.write(0);
+
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            listing.write(bytes, 0, bytes.length);
+        }
+
+        byte[] bytes = listing.toByteArray();
+        List<byte[]> encoded = new ArrayList<>(bytes.length / TftpEncoderDecoder.MAX_DATA_PACKET + 1);
+        int offset = 0;
+        int size;
+        short blockNumber = 0;
+
+        // full blocks, and then a short one that ends the listing
+        do {
+            size = Math.min(TftpEncoderDecoder.MAX_DATA_PACKET, bytes.length - offset);
+            encoded.add(TftpEncoderDecoder.dataPacket(bytes, offset, size, ++blockNumber));
+            offset += size;
+        } while (size == TftpEncoderDecoder.MAX_DATA_PACKET);
+
+        return Collections.unmodifiableList(encoded);
+    }
+}
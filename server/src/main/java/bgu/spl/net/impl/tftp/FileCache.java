@@ -0,0 +1,219 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The DATA packets of recently read files, so popular files are sent from
+ * memory. The packets are never modified, all the clients that read a file
+ * send the same arrays. A cached file is used only while the file on disk has
+ * the same size and modification time, and uploads and deletions drop it
+ * explicitly. When the cache is full the least recently read files are
+ * evicted. A file that is not cached is read into the cache in the background,
+ * the client that missed it is sent the file from disk meanwhile. Files are
+ * cached in blocks of the default size only, transfers with another block size
+ * are always sent from disk, so they don't replace each other's packets.
+ */
+public class FileCache {
+    public static final long DEFAULT_CAPACITY = 64L << 20; // 64MB
+    public static final long DEFAULT_MAX_FILE_SIZE = 1L << 20; // 1MB
+
+    private final long capacity; // bytes of packets
+    private final long maxFileSize;
+    private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    // the files that are being read into the cache, by name. invalidate removes a
+    // file, and the read that finishes after that is dropped
+    private final HashMap<String, Object> loading = new HashMap<>();
+    private long size = 0; // bytes of packets in files
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity    how many bytes of packets to keep, 0 to disable the
+     *                    cache.
+     * @param maxFileSize bigger files are not cached.
+     */
+    public FileCache(long capacity, long maxFileSize) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+    }
+
+    /**
+     * Get the DATA packets of a file, if it is cached. A miss starts reading
+     * the file into the cache, in the background. Call with the read lock of
+     * the file.
+     *
+     * @param filename   the name of the file.
+     * @param attributes the current attributes of the file.
+     * @param store      where to read the file from.
+     * @param blockSize  the size of the blocks.
+     * @return the packets, numbered from 1 (the last one is shorter than a
+     *         block), or null if the file is not cached (yet) or the blocks
+     *         are not of the default size.
+     */
+    public List<byte[]> getPackets(String filename, FileStore.Attributes attributes, FileStore store,
+            int blockSize) {
+        if (capacity <= 0 || blockSize != TftpEncoderDecoder.MAX_DATA_PACKET)
+            return null; // disabled, or not cacheable
+
+        CachedFile cached;
+        Object token = new Object();
+
+        synchronized (this) {
+            cached = files.get(filename);
+
+            if (cached != null && cached.size == attributes.getSize()
+                    && cached.modified == attributes.getModified()) {
+                hits.increment();
+                return cached.packets;
+            }
+
+            misses.increment();
+
+            if (attributes.getSize() > maxFileSize || loading.putIfAbsent(filename, token) != null)
+                return null; // too big to cache, or already being read
+        }
+
+        Thread.ofVirtual().name("file-cache").start(() -> load(filename, attributes, store, token));
+
+        return null;
+    }
+
+    /**
+     * Drop a file that was created or deleted. Call with the write lock of the
+     * file.
+     *
+     * @param filename the name of the file.
+     */
+    public synchronized void invalidate(String filename) {
+        CachedFile removed = files.remove(filename);
+
+        loading.remove(filename);
+
+        if (removed != null)
+            size -= removed.bytes;
+    }
+
+    /**
+     * Drop all the files.
+     */
+    public synchronized void clear() {
+        files.clear();
+        loading.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the bytes of packets in the cache.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Read a file into the cache, unless it is invalidated meanwhile.
+     *
+     * @param attributes the attributes of the file when it was missed, the
+     *                   cached file is used only while it still has them.
+     * @param token      the one in loading for this read.
+     */
+    private void load(String filename, FileStore.Attributes attributes, FileStore store, Object token) {
+        CachedFile cached = null;
+
+        try (FileStore.StoredFile file = store.open(filename)) {
+            cached = read(file, attributes.getSize(), attributes.getModified());
+        } catch (IOException ignored) {
+            // deleted meanwhile, or unreadable: it is sent from disk, and the next miss tries again
+        }
+
+        synchronized (this) {
+            if (loading.remove(filename, token) && cached != null)
+                put(filename, cached);
+        }
+    }
+
+    private synchronized void put(String filename, CachedFile cached) {
+        CachedFile replaced = files.put(filename, cached);
+
+        if (replaced != null)
+            size -= replaced.bytes;
+
+        size += cached.bytes;
+
+        // the least recently read first
+        Iterator<CachedFile> eldest = files.values().iterator();
+
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().bytes;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Read a file straight into DATA packets.
+     *
+     * @return the file, or null if it changed while it was read.
+     */
+    private static CachedFile read(FileStore.StoredFile file, long fileSize, long modified) throws IOException {
+        int blockSize = TftpEncoderDecoder.MAX_DATA_PACKET;
+        List<byte[]> packets = new ArrayList<>((int) (fileSize / blockSize + 1));
+        long bytes = 0;
+        long position = 0;
+        int dataSize;
+
+        do {
+            dataSize = (int) Math.min(blockSize, fileSize - position);
+            byte[] packet = TftpEncoderDecoder.dataHeader(dataSize, (short) (packets.size() + 1));
+            ByteBuffer data = ByteBuffer.wrap(packet, 6, dataSize);
+
+            while (data.hasRemaining())
+                if (file.read(data, position + data.position() - 6) < 0)
+                    return null; // got shorter
+
+            packets.add(packet);
+            position += dataSize;
+            bytes += packet.length;
+        } while (dataSize == blockSize);
+
+        if (file.size() != fileSize)
+            return null;
+
+        return new CachedFile(Collections.unmodifiableList(packets), fileSize, modified, bytes);
+    }
+
+    private static class CachedFile {
+        private final List<byte[]> packets;
+        private final long size; // of the file
+        private final long modified;
+        private final long bytes; // of the packets
+
+        CachedFile(List<byte[]> packets, long size, long modified, long bytes) {
+            this.packets = packets;
+            this.size = size;
+            this.modified = modified;
+            this.bytes = bytes;
+        }
+    }
+}
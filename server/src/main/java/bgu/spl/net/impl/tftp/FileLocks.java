@@ -0,0 +1,96 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks per file name.
+ * Any number of readers of a file can hold its lock together, a writer holds it
+ * alone, and different files never block each other. A lock only exists while
+ * someone holds or waits for it. The time it takes to get a lock is recorded
+ * (zero when nobody else holds it).
+ */
+public class FileLocks {
+    private final ConcurrentHashMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    /**
+     * Lock a file for reading, waiting for its writer (if any) to finish.
+     *
+     * @param filename the name of the file.
+     */
+    public void lockRead(String filename) {
+        lock(acquireEntry(filename).lock.readLock());
+    }
+
+    /**
+     * Release a read lock taken with lockRead.
+     *
+     * @param filename the name of the file.
+     */
+    public void unlockRead(String filename) {
+        locks.get(filename).lock.readLock().unlock();
+        releaseEntry(filename);
+    }
+
+    /**
+     * Lock a file for writing (creating or deleting it), waiting for everyone
+     * else that holds its lock to finish.
+     *
+     * @param filename the name of the file.
+     */
+    public void lockWrite(String filename) {
+        lock(acquireEntry(filename).lock.writeLock());
+    }
+
+    /**
+     * Release a write lock taken with lockWrite.
+     *
+     * @param filename the name of the file.
+     */
+    public void unlockWrite(String filename) {
+        locks.get(filename).lock.writeLock().unlock();
+        releaseEntry(filename);
+    }
+
+    /**
+     * @return how long it took to get the locks.
+     */
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    private void lock(Lock lock) {
+        if (lock.tryLock()) {
+            waitTimes.record(0); // no need to read the clock
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        lock.lock();
+        waitTimes.record(System.nanoTime() - start);
+    }
+
+    private LockEntry acquireEntry(String filename) {
+        return locks.compute(filename, (name, entry) -> {
+            if (entry == null)
+                entry = new LockEntry();
+
+            entry.users++;
+
+            return entry;
+        });
+    }
+
+    private void releaseEntry(String filename) {
+        // the last user removes the lock
+        locks.computeIfPresent(filename, (name, entry) -> --entry.users == 0 ? null : entry);
+    }
+
+    private static class LockEntry {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int users = 0; // holders and waiters, only changed inside compute
+    }
+}
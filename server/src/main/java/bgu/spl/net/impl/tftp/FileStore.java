@@ -0,0 +1,133 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Where the server keeps its files. The protocol reaches the files only
+ * through this interface, so they may be kept in a directory
+ * (DirectoryFileStore), in memory (MemoryFileStore) or anywhere else.
+ * A store does not lock anything, the callers hold the lock of the file name
+ * (see FileLocks). An upload gets its name only when it is published, before
+ * that it is invisible, so nobody reads half uploaded files.
+ */
+public interface FileStore {
+    /**
+     * @param filename the name of a file.
+     * @return the attributes of the file, or null if there is no such file (or
+     *         it can't be read).
+     */
+    Attributes stat(String filename);
+
+    /**
+     * Open a file for reading.
+     *
+     * @param filename the name of the file.
+     * @return the file, the caller closes it.
+     * @throws java.nio.file.NoSuchFileException if there is no such file.
+     */
+    StoredFile open(String filename) throws IOException;
+
+    /**
+     * Start writing a file. It is invisible until it is published.
+     *
+     * @param filename the name the file will get.
+     * @return the upload, the caller closes it.
+     */
+    Upload create(String filename) throws IOException;
+
+    /**
+     * @param filename the name of a file.
+     * @return true iff the file existed and was deleted.
+     */
+    boolean delete(String filename) throws IOException;
+
+    /**
+     * @return the names of the files, in no particular order.
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * @param filename a file name.
+     * @return true iff the store keeps the name to itself, so it can't be
+     *         uploaded.
+     */
+    default boolean isReserved(String filename) {
+        return false;
+    }
+
+    /** The size and modification time of a file. */
+    final class Attributes {
+        private final long size;
+        private final long modified;
+
+        public Attributes(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the modification time, in milliseconds since the epoch.
+         */
+        public long getModified() {
+            return modified;
+        }
+    }
+
+    /** A file that is open for reading. */
+    interface StoredFile extends Closeable {
+        long size() throws IOException;
+
+        /**
+         * Read from a position of the file.
+         *
+         * @param dst      where to read to.
+         * @param position where to read from.
+         * @return how many bytes were read, -1 at the end of the file.
+         */
+        int read(ByteBuffer dst, long position) throws IOException;
+
+        /**
+         * @return the file as a channel, so regions of it can be sent without
+         *         copying them to the heap, or null if it is not kept in a file.
+         */
+        FileChannel channel();
+    }
+
+    /** A file that is being written. */
+    interface Upload extends Closeable {
+        /**
+         * Append to the file.
+         *
+         * @param data all of it is written.
+         */
+        void write(ByteBuffer data) throws IOException;
+
+        /**
+         * Take the content of an existing file instead of what was written.
+         * Call with the read lock of the existing file.
+         *
+         * @param filename the name of the existing file.
+         */
+        void copyOf(String filename) throws IOException;
+
+        /**
+         * Give the file its name. The caller must make sure the name is still
+         * free.
+         */
+        void publish() throws IOException;
+
+        /**
+         * Drop the file, unless it was published.
+         */
+        @Override
+        void close() throws IOException;
+    }
+}
@@ -0,0 +1,117 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations, counted in power of 2 buckets of microseconds. Recording is lock
+ * free and any thread may do it; percentiles are the upper bound of their
+ * bucket (or the maximum, if it is lower), so they are at most twice the real
+ * value.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40; // bucket i holds durations below 2^i microseconds
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos a duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+
+        if (nanos > maxNanos.get())
+            maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        long max = maxNanos.get() / 1000;
+
+        return new Snapshot(total,
+                total == 0 ? 0 : totalNanos.sum() / 1000 / total,
+                Math.min(max, percentile(counts, total, 0.5)),
+                Math.min(max, percentile(counts, total, 0.99)),
+                Math.min(max, percentile(counts, total, 0.999)),
+                max);
+    }
+
+    private static long percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= rank && seen > 0)
+                return 1L << i;
+        }
+
+        return 0;
+    }
+
+    /** The histogram at some point, in microseconds. */
+    public static class Snapshot {
+        private final long count;
+        private final long meanMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long p999Micros;
+        private final long maxMicros;
+
+        Snapshot(long count, long meanMicros, long p50Micros, long p99Micros, long p999Micros, long maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getP999Micros() {
+            return p999Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return count + " (mean " + meanMicros + "us, p50 " + p50Micros + "us, p99 " + p99Micros
+                    + "us, p999 " + p999Micros + "us, max " + maxMicros + "us)";
+        }
+    }
+}
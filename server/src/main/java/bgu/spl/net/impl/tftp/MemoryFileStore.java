@@ -0,0 +1,138 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files that are kept in memory, and lost when the server stops. For
+ * benchmarks and tests, to run the protocol without a disk.
+ * The content of a file is never modified once it is published, so readers
+ * share it without copying.
+ */
+public class MemoryFileStore implements FileStore {
+    private final ConcurrentHashMap<String, MemoryFile> files = new ConcurrentHashMap<>();
+
+    @Override
+    public Attributes stat(String filename) {
+        MemoryFile file = files.get(filename);
+
+        return file == null ? null : new Attributes(file.content.length, file.modified);
+    }
+
+    @Override
+    public StoredFile open(String filename) throws IOException {
+        MemoryFile file = files.get(filename);
+
+        if (file == null)
+            throw new NoSuchFileException(filename);
+
+        return new MemoryStoredFile(file.content);
+    }
+
+    @Override
+    public Upload create(String filename) {
+        return new MemoryUpload(filename);
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        return files.remove(filename) != null;
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    private static class MemoryFile {
+        private final byte[] content;
+        private final long modified;
+
+        MemoryFile(byte[] content) {
+            this.content = content;
+            this.modified = System.currentTimeMillis();
+        }
+    }
+
+    private static class MemoryStoredFile implements StoredFile {
+        private final byte[] content;
+
+        MemoryStoredFile(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= content.length)
+                return -1;
+
+            int read = (int) Math.min(dst.remaining(), content.length - position);
+
+            dst.put(content, (int) position, read);
+
+            return read;
+        }
+
+        @Override
+        public FileChannel channel() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class MemoryUpload implements Upload {
+        private final String filename;
+        private byte[] content = new byte[1 << 12];
+        private int size = 0;
+
+        MemoryUpload(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            if (size + data.remaining() > content.length)
+                content = Arrays.copyOf(content, Math.max(content.length * 2, size + data.remaining()));
+
+            int length = data.remaining();
+
+            data.get(content, size, length);
+            size += length;
+        }
+
+        @Override
+        public void copyOf(String existing) throws IOException {
+            MemoryFile file = files.get(existing);
+
+            if (file == null)
+                throw new NoSuchFileException(existing);
+
+            content = file.content; // shared, neither is modified again
+            size = content.length;
+        }
+
+        @Override
+        public void publish() {
+            files.put(filename, new MemoryFile(size == content.length ? content : Arrays.copyOf(content, size)));
+        }
+
+        @Override
+        public void close() {
+            content = null; // dropped, unless it was published
+        }
+    }
+}
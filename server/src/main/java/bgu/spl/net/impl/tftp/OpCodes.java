@@ -4,21 +4,34 @@ package bgu.spl.net.impl.tftp;
 public enum OpCodes {
     RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5),
     DIRQ(6), LOGRQ(7), DELRQ(8), BCAST(9), DISC(10),
+    OPT(11), OACK(12), // transfer options, requested before RRQ/WRQ and acknowledged
     UNKNOWN(-1);
 
+    // opcodes by number, so decoding a packet does not search (or copy values())
+    private static final OpCodes[] BY_NUMBER = new OpCodes[OACK.num + 1];
+
+    static {
+        for (OpCodes opcode : values())
+            if (opcode.num >= 0)
+                BY_NUMBER[opcode.num] = opcode;
+    }
+
     private final short num;
+    private final byte[] bytes;
 
     OpCodes(int num) {
         this.num = (short) num;
+        this.bytes = new byte[] { (byte) (num >> 8), (byte) (num & 0xff) };
     }
 
     /**
      * Get the number of the current opcode.
+     * The array is shared, it must not be modified.
      * 
      * @return a 2-bytes array.
      */
     public byte[] getBytes() {
-        return new byte[] { (byte) (num >> 8), (byte) (num & 0xff) };
+        return bytes;
     }
 
     /**
@@ -37,13 +50,9 @@ public enum OpCodes {
      * @return corresponding opcode enum or UNKNOWN enum if the value is invalid.
      */
     public static OpCodes fromInt(int num) {
-        for (OpCodes opcode : OpCodes.values()) {
-            if (opcode.num == num) {
-                return opcode;
-            }
-        }
+        OpCodes opcode = num >= 0 && num < BY_NUMBER.length ? BY_NUMBER[num] : null;
 
-        return UNKNOWN;
+        return opcode != null ? opcode : UNKNOWN;
     }
 
     /**
@@ -1,13 +1,63 @@
 package bgu.spl.net.impl.tftp;
 
+import bgu.spl.net.srv.HashedWheelTimer;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class PublicResources {
-    // a username map, saves each logged in user
-    public static ConcurrentHashMap<Integer, String> usersMap = new ConcurrentHashMap<>();
+    // the logged in users, by connection id and by username
+    public static SessionRegistry sessions = new SessionRegistry();
 
-    // a semaphore to use when accessing files
-    // only one thread at a given time is allowed to modify files
-    public static Semaphore accessSemaphore = new Semaphore(1, true);
+    // a read/write lock per file name, to use when accessing files
+    // readers of a file share its lock, creating or deleting a file is exclusive
+    // only for that file name
+    public static FileLocks fileLocks = new FileLocks();
+
+    // names of files that are being uploaded, so two clients can't upload the same name
+    public static Set<String> uploadingFiles = ConcurrentHashMap.newKeySet();
+
+    // where the files are kept, see useFileStore
+    public static FileStore fileStore = new DirectoryFileStore("Files");
+
+    // the DIRQ answer, kept up to date by uploads and deletions
+    public static DirectoryListing directoryListing = new DirectoryListing(fileStore);
+
+    // the DATA packets of popular files, replaced by TftpServer with the configured one
+    public static FileCache fileCache = new FileCache(FileCache.DEFAULT_CAPACITY, FileCache.DEFAULT_MAX_FILE_SIZE);
+
+    // the files by the hash of their content, kept up to date by uploads and deletions
+    public static ContentIndex contentIndex = new ContentIndex(fileStore);
+
+    // counters of the protocol, see also ServerMetrics
+    public static TftpMetrics metrics = new TftpMetrics();
+
+    // the timeouts of all the connections, a tick is 100ms and a round of the wheel ~51s
+    public static HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512, "tftp-timer");
+
+    // in milliseconds, 0 for no limit. TftpServer sets the configured ones
+    // how long a transfer (or a DIRQ) waits for the next DATA/ACK before it is dropped
+    public static long transferTimeout = 30_000;
+    // bytes per second. A RRQ also waits for as long as its unacknowledged blocks take at this rate
+    public static long transferMinRate = 16 * 1024;
+    // how long a client may send nothing at all before its connection is closed, no limit by default
+    // since an interactive client says nothing while its user does not type
+    public static long idleTimeout = 0;
+
+    // sends BCAST packets to all the logged in users
+    public static BroadcastDispatcher broadcasts = new BroadcastDispatcher(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Keep the files in another store, with the listing and the index that
+     * depend on it. Call before any client connects.
+     *
+     * @param store the store.
+     */
+    public static void useFileStore(FileStore store) {
+        fileStore = store;
+        directoryListing = new DirectoryListing(store);
+        contentIndex = new ContentIndex(store);
+        fileCache.clear();
+    }
 }
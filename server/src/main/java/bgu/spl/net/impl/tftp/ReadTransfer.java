@@ -0,0 +1,236 @@
+package bgu.spl.net.impl.tftp;
+
+import bgu.spl.net.srv.Connections;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A file, or a range of it, that is being sent to a client (RRQ).
+ * Up to windowSize blocks are sent before waiting for an ACK, and an ACK
+ * acknowledges its block and every block before it. Blocks of a file on disk
+ * are never copied to the heap: each one is sent as a DATA header followed by
+ * a region of the file, or, for a file that is in the FileCache, as its shared
+ * cached packet. Files that are not kept in a file (see FileStore) are read
+ * into a packet per block, and so are compressed transfers, whose blocks are
+ * cut from the DEFLATE stream of the file.
+ */
+class ReadTransfer implements Closeable {
+    private final FileStore.StoredFile file; // null if the file is cached
+    private final FileChannel channel; // null if the file is cached or is not in a file
+    private final List<byte[]> cachedPackets; // null if the file is not cached
+    private final long end; // where the last block ends
+    private final long offset; // where the first block starts
+    private final int windowSize;
+    private final int blockSize;
+    // DATA headers, reused in turn. The header of a block is written after
+    // the call that sent it returns, so it is only reused a window later, once
+    // the client acknowledged the block
+    private final byte[][] headers;
+    private long blocksSent = 0; // the block number wraps around, these do not
+    private long blocksAcked = 0;
+    private boolean lastBlockSent = false;
+    private final long startTime = System.nanoTime();
+    // compressed transfers only, null otherwise
+    private final Deflater deflater;
+    private final byte[] input; // the next part of the file to compress
+    private final byte[] block; // a compressed block, before it gets its header
+    private long readPosition; // where the next part of the file to compress starts
+
+    /**
+     * @param file    the file to send, this transfer closes it.
+     * @param options the options of the transfer.
+     */
+    ReadTransfer(FileStore.StoredFile file, TransferOptions options) throws IOException {
+        this.file = file;
+        this.channel = file.channel();
+        this.cachedPackets = null;
+        long size = file.size();
+
+        this.offset = Math.min(options.getOffset(), size);
+        this.end = options.getLength() < 0 ? size : Math.min(size, offset + options.getLength());
+        this.windowSize = options.getWindowSize();
+        this.blockSize = options.getBlockSize();
+        this.headers = new byte[windowSize][6];
+        this.readPosition = offset;
+
+        if (options.isCompressed()) {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            this.input = new byte[Math.max(blockSize, 1 << 16)];
+            this.block = new byte[blockSize];
+        } else {
+            this.deflater = null;
+            this.input = null;
+            this.block = null;
+        }
+
+        for (byte[] header : headers) {
+            header[0] = OpCodes.DATA.getBytes()[0];
+            header[1] = OpCodes.DATA.getBytes()[1];
+        }
+    }
+
+    /**
+     * @param cachedPackets the DATA packets of the file, in the block size of
+     *                      the options (see FileCache).
+     */
+    ReadTransfer(List<byte[]> cachedPackets, TransferOptions options) {
+        this.file = null;
+        this.channel = null;
+        this.cachedPackets = cachedPackets;
+        this.end = 0; // the packets know their sizes
+        this.offset = 0;
+        this.windowSize = options.getWindowSize();
+        this.blockSize = options.getBlockSize();
+        this.headers = null;
+        this.deflater = null;
+        this.input = null;
+        this.block = null;
+    }
+
+    /**
+     * Send blocks until the window is full or the file ends.
+     *
+     * @param connections  the connections to send through.
+     * @param connectionId the client.
+     * @throws IOException if the file could not be read (a file on disk that is
+     *                     not compressed is read only as it is sent).
+     */
+    void sendWindow(Connections<byte[]> connections, int connectionId) throws IOException {
+        while (!lastBlockSent && blocksSent - blocksAcked < windowSize)
+            sendNextBlock(connections, connectionId);
+    }
+
+    /**
+     * Acknowledge a block that was sent, and all the blocks before it.
+     *
+     * @param blockNumber the block number in the ACK.
+     * @return false if no block that waits for an ACK has this number.
+     */
+    boolean acknowledge(short blockNumber) {
+        for (long block = blocksAcked + 1; block <= blocksSent; block++) {
+            if ((short) block == blockNumber) {
+                blocksAcked = block;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return about how many bytes were sent and not acknowledged yet.
+     */
+    long getBytesInFlight() {
+        return (blocksSent - blocksAcked) * blockSize;
+    }
+
+    /**
+     * @return true iff all the blocks of the file were sent and acknowledged.
+     */
+    boolean isComplete() {
+        return lastBlockSent && blocksAcked == blocksSent;
+    }
+
+    /**
+     * Send the next block of the file.
+     *
+     * @param connections  the connections to send through.
+     * @param connectionId the client.
+     */
+    private void sendNextBlock(Connections<byte[]> connections, int connectionId) throws IOException {
+        if (cachedPackets != null) {
+            connections.send(connectionId, cachedPackets.get((int) blocksSent));
+            blocksSent++;
+            lastBlockSent = blocksSent == cachedPackets.size();
+            return;
+        }
+
+        if (deflater != null) {
+            int dataSize = compressNextBlock();
+
+            lastBlockSent = dataSize < blockSize;
+            blocksSent++;
+            connections.send(connectionId, TftpEncoderDecoder.dataPacket(block, 0, dataSize, getBlockNumber()));
+            return;
+        }
+
+        long position = offset + blocksSent * blockSize;
+        int dataSize = (int) Math.min(blockSize, end - position);
+
+        // a short block ends the transfer (might be an empty one)
+        lastBlockSent = dataSize < blockSize;
+        blocksSent++;
+
+        if (channel == null) {
+            byte[] packet = TftpEncoderDecoder.dataHeader(dataSize, getBlockNumber());
+            ByteBuffer data = ByteBuffer.wrap(packet, 6, dataSize);
+
+            while (data.hasRemaining())
+                if (file.read(data, position + data.position() - 6) < 0)
+                    throw new IOException("the file got shorter");
+
+            connections.send(connectionId, packet);
+            return;
+        }
+
+        byte[] header = headers[(int) (blocksSent % headers.length)];
+
+        TftpEncoderDecoder.putShort(header, 2, (short) dataSize);
+        TftpEncoderDecoder.putShort(header, 4, getBlockNumber());
+
+        connections.send(connectionId, header, channel, position, dataSize);
+    }
+
+    /**
+     * Fill the block with the next part of the compressed stream.
+     *
+     * @return the size of the block, less than a whole one iff the stream ended.
+     */
+    private int compressNextBlock() throws IOException {
+        int size = 0;
+
+        while (size < blockSize && !deflater.finished()) {
+            if (deflater.needsInput()) {
+                int read = readPosition < end
+                        ? file.read(ByteBuffer.wrap(input, 0, (int) Math.min(input.length, end - readPosition)),
+                                readPosition)
+                        : -1;
+
+                if (read > 0) {
+                    deflater.setInput(input, 0, read);
+                    readPosition += read;
+                } else {
+                    deflater.finish(); // the range ended (or the file is shorter)
+                }
+            }
+
+            size += deflater.deflate(block, size, blockSize - size);
+        }
+
+        return size;
+    }
+
+    private short getBlockNumber() {
+        return (short) blocksSent;
+    }
+
+    /**
+     * @return when the transfer started, in System.nanoTime() terms.
+     */
+    long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null)
+            deflater.end();
+
+        if (file != null)
+            file.close();
+    }
+}
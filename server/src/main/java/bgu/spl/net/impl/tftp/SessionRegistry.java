@@ -0,0 +1,63 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged in users, by connection and by username, so checking if a name
+ * is taken is a lookup and not a scan of all the users. A name is claimed
+ * atomically, two clients that log in with the same name at the same time
+ * can't both get it.
+ */
+public class SessionRegistry {
+    private final ConcurrentHashMap<Integer, String> usernames = new ConcurrentHashMap<>(); // by connection id
+    private final ConcurrentHashMap<String, Integer> connectionIds = new ConcurrentHashMap<>(); // by username
+
+    /**
+     * Log a connection in.
+     *
+     * @param connectionId the connection.
+     * @param username     the name it asks for.
+     * @return false if the name is taken or the connection is already logged
+     *         in.
+     */
+    public boolean login(int connectionId, String username) {
+        if (connectionIds.putIfAbsent(username, connectionId) != null)
+            return false;
+
+        if (usernames.putIfAbsent(connectionId, username) != null) {
+            connectionIds.remove(username, connectionId); // give the name back
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Log a connection out, freeing its name. Nothing happens if it is not
+     * logged in.
+     *
+     * @param connectionId the connection.
+     */
+    public void logout(int connectionId) {
+        String username = usernames.remove(connectionId);
+
+        if (username != null)
+            connectionIds.remove(username, connectionId);
+    }
+
+    /**
+     * @return the logged in connections. A live view, it may change while it is
+     *         iterated.
+     */
+    public Set<Integer> getConnectionIds() {
+        return usernames.keySet();
+    }
+
+    /**
+     * @return how many connections are logged in.
+     */
+    public int size() {
+        return usernames.size();
+    }
+}
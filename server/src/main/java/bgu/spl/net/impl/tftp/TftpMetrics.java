@@ -0,0 +1,182 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the protocol: packets and errors per opcode, how long packets
+ * take to process, how long transfers take, how long requests wait for file
+ * locks, how often files are read from the FileCache, how many uploads were
+ * skipped because the server had their content and how many transfers and
+ * connections were dropped for waiting too long for their client. Any thread
+ * may update them without blocking.
+ */
+public class TftpMetrics implements TftpMetricsMXBean {
+    private static final OpCodes[] OPCODES = OpCodes.values();
+
+    private final LongAdder[] requests = new LongAdder[OPCODES.length]; // by opcode ordinal
+    private final LongAdder[] errors = new LongAdder[OPCODES.length]; // ERROR answers, by the opcode they answered
+    private final LatencyHistogram[] processingTimes = new LatencyHistogram[OPCODES.length];
+    private final LatencyHistogram readTransferTimes = new LatencyHistogram();
+    private final LatencyHistogram writeTransferTimes = new LatencyHistogram();
+    private final LongAdder deduplicatedUploads = new LongAdder();
+    private final LongAdder timedOutTransfers = new LongAdder();
+    private final LongAdder idleConnectionsClosed = new LongAdder();
+
+    public TftpMetrics() {
+        for (int i = 0; i < OPCODES.length; i++) {
+            requests[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            processingTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param opcode the opcode of a packet from a client.
+     * @param nanos  how long it took to process it.
+     */
+    public void processed(OpCodes opcode, long nanos) {
+        requests[opcode.ordinal()].increment();
+        processingTimes[opcode.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param opcode the opcode of the packet that was answered with an ERROR.
+     */
+    public void errorSent(OpCodes opcode) {
+        errors[opcode.ordinal()].increment();
+    }
+
+    public void readTransferCompleted(long nanos) {
+        readTransferTimes.record(nanos);
+    }
+
+    public void writeTransferCompleted(long nanos) {
+        writeTransferTimes.record(nanos);
+    }
+
+    public void uploadDeduplicated() {
+        deduplicatedUploads.increment();
+    }
+
+    public void transferTimedOut() {
+        timedOutTransfers.increment();
+    }
+
+    public void idleConnectionClosed() {
+        idleConnectionsClosed.increment();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return PublicResources.sessions.size();
+    }
+
+    @Override
+    public Map<String, Long> getRequests() {
+        return byOpcode(requests);
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return byOpcode(errors);
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getProcessingTimes() {
+        Map<String, LatencyHistogram.Snapshot> times = new LinkedHashMap<>();
+
+        for (OpCodes opcode : OPCODES) {
+            LatencyHistogram.Snapshot snapshot = processingTimes[opcode.ordinal()].snapshot();
+
+            if (snapshot.getCount() > 0)
+                times.put(opcode.name(), snapshot);
+        }
+
+        return times;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getReadTransferTimes() {
+        return readTransferTimes.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getWriteTransferTimes() {
+        return writeTransferTimes.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLockWaitTimes() {
+        return PublicResources.fileLocks.getWaitTimes().snapshot();
+    }
+
+    @Override
+    public long getFileCacheHits() {
+        return PublicResources.fileCache.getHits();
+    }
+
+    @Override
+    public long getFileCacheMisses() {
+        return PublicResources.fileCache.getMisses();
+    }
+
+    @Override
+    public double getFileCacheHitRate() {
+        long hits = getFileCacheHits();
+        long reads = hits + getFileCacheMisses();
+
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public long getFileCacheEvictions() {
+        return PublicResources.fileCache.getEvictions();
+    }
+
+    @Override
+    public long getFileCacheSize() {
+        return PublicResources.fileCache.getSize();
+    }
+
+    @Override
+    public long getDeduplicatedUploads() {
+        return deduplicatedUploads.sum();
+    }
+
+    @Override
+    public long getTimedOutTransfers() {
+        return timedOutTransfers.sum();
+    }
+
+    @Override
+    public long getIdleConnectionsClosed() {
+        return idleConnectionsClosed.sum();
+    }
+
+    // the opcodes that were counted at least once
+    private static Map<String, Long> byOpcode(LongAdder[] counters) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+
+        for (OpCodes opcode : OPCODES) {
+            long count = counters[opcode.ordinal()].sum();
+
+            if (count > 0)
+                counts.put(opcode.name(), count);
+        }
+
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "users " + getLoggedInUsers() + ", requests " + getRequests() + ", errors " + getErrors()
+                + ", processing " + getProcessingTimes() + ", reads " + getReadTransferTimes()
+                + ", writes " + getWriteTransferTimes() + ", lock waits " + getLockWaitTimes()
+                + ", file cache " + getFileCacheHits() + " hits, " + getFileCacheMisses() + " misses, "
+                + getFileCacheEvictions() + " evictions, " + getFileCacheSize() + " bytes, deduplicated uploads "
+                + getDeduplicatedUploads() + ", timed out transfers " + getTimedOutTransfers()
+                + ", idle connections closed " + getIdleConnectionsClosed();
+    }
+}
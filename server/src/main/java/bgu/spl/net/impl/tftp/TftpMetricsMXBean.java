@@ -0,0 +1,38 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Map;
+
+/**
+ * The JMX view of TftpMetrics.
+ */
+public interface TftpMetricsMXBean {
+    int getLoggedInUsers();
+
+    Map<String, Long> getRequests();
+
+    Map<String, Long> getErrors();
+
+    Map<String, LatencyHistogram.Snapshot> getProcessingTimes();
+
+    LatencyHistogram.Snapshot getReadTransferTimes();
+
+    LatencyHistogram.Snapshot getWriteTransferTimes();
+
+    LatencyHistogram.Snapshot getLockWaitTimes();
+
+    long getFileCacheHits();
+
+    long getFileCacheMisses();
+
+    double getFileCacheHitRate();
+
+    long getFileCacheEvictions();
+
+    long getFileCacheSize();
+
+    long getDeduplicatedUploads();
+
+    long getTimedOutTransfers();
+
+    long getIdleConnectionsClosed();
+}
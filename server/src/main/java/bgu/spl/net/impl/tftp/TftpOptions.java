@@ -0,0 +1,149 @@
+package bgu.spl.net.impl.tftp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transfer options, in the spirit of RFC 2347.
+ * A client may send OPT packets (opcode, name, 0, value, 0) right before a
+ * RRQ/WRQ. The server answers that request with an OACK packet (same layout)
+ * for every option it accepted, possibly with a different value, and then goes
+ * on as usual (DATA 1 for RRQ, ACK 0 for WRQ). Options that were not
+ * acknowledged keep their default values.
+ */
+public class TftpOptions {
+    /** Number of DATA blocks that may be sent before waiting for an ACK (RFC 7440). */
+    public static final String WINDOW_SIZE = "windowsize";
+    public static final int DEFAULT_WINDOW_SIZE = 1;
+    public static final int MAX_WINDOW_SIZE = 64;
+
+    /** Size of the DATA blocks, the last block of a file is shorter (RFC 2348). */
+    public static final String BLOCK_SIZE = "blksize";
+    public static final int DEFAULT_BLOCK_SIZE = TftpEncoderDecoder.MAX_DATA_PACKET;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+
+    /**
+     * The byte of the file a RRQ starts from, to resume a download. The server
+     * acknowledges where it starts (at most the size of the file), the blocks
+     * are numbered from 1 as usual.
+     */
+    public static final String OFFSET = "offset";
+
+    /**
+     * How many bytes a RRQ reads, from its offset, for a download in ranges.
+     * The server acknowledges how many it sends (at most the rest of the file).
+     */
+    public static final String LENGTH = "length";
+
+    /**
+     * The size of the file a RRQ reads, the client sends 0 and the server
+     * acknowledges the size (RFC 2349).
+     */
+    public static final String TRANSFER_SIZE = "tsize";
+
+    /**
+     * Compression of the file a RRQ/WRQ transfers. The DATA blocks carry the
+     * compressed stream instead of the file, split into blocks as usual (a
+     * short block ends it). DEFLATE (zlib format, fastest level) is the only
+     * codec.
+     */
+    public static final String COMPRESS = "compress";
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The SHA-256 (in hex) of the file a WRQ uploads. If the server already has
+     * a file with this content it answers with a DEDUP OACK and an ACK 0, and
+     * creates the file locally, so no DATA follows. Otherwise it acknowledges
+     * the hash, the upload goes on as usual and is refused if its content does
+     * not match.
+     */
+    public static final String SHA256 = "sha256";
+    public static final String DEDUP = "dedup";
+
+    /**
+     * Build an option packet.
+     *
+     * @param opcode OPT or OACK.
+     * @param name   the name of the option.
+     * @param value  the value of the option.
+     * @return the encoded packet.
+     */
+    public static byte[] buildPacket(OpCodes opcode, String name, String value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[4 + nameBytes.length + valueBytes.length];
+
+        packet[0] = opcode.getBytes()[0];
+        packet[1] = opcode.getBytes()[1];
+
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+        System.arraycopy(valueBytes, 0, packet, 3 + nameBytes.length, valueBytes.length);
+
+        // packet[2 + nameBytes.length] and the last byte are already 0
+
+        return packet;
+    }
+
+    /**
+     * Extract the name of the option in an OPT/OACK packet.
+     *
+     * @param packet the packet.
+     * @return the name of the option.
+     */
+    public static String getName(byte[] packet) {
+        return new String(packet, 2, nameEnd(packet) - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Extract the value of the option in an OPT/OACK packet.
+     *
+     * @param packet the packet.
+     * @return the value of the option.
+     */
+    public static String getValue(byte[] packet) {
+        int valueStart = nameEnd(packet) + 1;
+
+        return new String(packet, valueStart, packet.length - 1 - valueStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a numeric option value and fit it into a range.
+     *
+     * @param value the value as sent.
+     * @param min   the lowest allowed value.
+     * @param max   the highest allowed value.
+     * @return the value inside the range, or -1 if it is not a number.
+     */
+    public static int parseInt(String value, int min, int max) {
+        try {
+            return (int) Math.max(min, Math.min(max, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a numeric option value that may not fit in an int.
+     *
+     * @param value the value as sent.
+     * @param min   the lowest allowed value.
+     * @param max   the highest allowed value.
+     * @return the value inside the range, or -1 if it is not a number.
+     */
+    public static long parseLong(String value, long min, long max) {
+        try {
+            return Math.max(min, Math.min(max, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int nameEnd(byte[] packet) {
+        int i = 2;
+
+        while (packet[i] != 0)
+            i++;
+
+        return i;
+    }
+}
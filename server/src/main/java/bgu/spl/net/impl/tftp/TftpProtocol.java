@@ -2,28 +2,40 @@ package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.HashedWheelTimer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipException;
 
 public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
+    private static final int MAX_REQUESTED_OPTIONS = 16;
+    private static final long BUSY_RETRY_MILLIS = 100; // a timer that finds the connection busy looks again after this
+
     private int connectionId;
     private boolean isLoggedIn;
     private boolean shouldTerminate = false;
-    private short lastBlockNumber = 0;
-    private Queue<byte[]> packetsQueue;
     private Connections<byte[]> connections;
-    private String newFilename; // the name of the file that is being created
-    private String directoryPath = "Files";
-    private ArrayDeque<byte[]> newFileBytes;
+    private ReadTransfer readTransfer; // the file that is being sent to the client, if any
+    private WriteTransfer writeTransfer; // the file that is being uploaded by the client, if any
+    private List<byte[]> listing; // the DIRQ packets that are being sent, if any
+    private int listingPacketsAcked;
+    // options sent (OPT) for the next RRQ/WRQ
+    private final Map<String, String> requestedOptions = new LinkedHashMap<>();
+    private final Map<String, String> acceptedOptions = new LinkedHashMap<>(); // to send as OACK
+    private OpCodes requestOpcode; // of the packet that is being processed, for the metrics
+    // the timers run on the timer thread, they take this lock like process does.
+    // not synchronized, a virtual thread must not block on a file lock holding a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed = false; // the timers must not touch anything once onClose ran
+    private long lastMessageTime; // System.nanoTime() of the last packet from the client
+    private long lastProgressTime; // of the last DATA/ACK, while a transfer is on
+    private HashedWheelTimer.Timeout idleTimer; // null if there is no idle timeout
+    private HashedWheelTimer.Timeout transferTimer; // armed while a transfer or a listing waits for the client
 
     @Override
     public void start(int connectionId, Connections<byte[]> connections) {
@@ -31,15 +43,34 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
         this.connectionId = connectionId;
         this.connections = connections;
         this.isLoggedIn = false;
-        this.packetsQueue = new LinkedBlockingDeque<>();
-        this.newFilename = new String();
-        this.newFileBytes = new ArrayDeque<>();
+
+        lock.lock();
+
+        try {
+            lastMessageTime = System.nanoTime();
+            idleTimer = schedule(this::idleTimerExpired, PublicResources.idleTimeout);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void process(byte[] message) {
-        OpCodes opcode = OpCodes.extractOpcode(message);
+        lock.lock();
+
+        try {
+            long start = System.nanoTime();
 
+            lastMessageTime = start;
+            requestOpcode = OpCodes.extractOpcode(message);
+            dispatch(requestOpcode, message);
+            PublicResources.metrics.processed(requestOpcode, System.nanoTime() - start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch(OpCodes opcode, byte[] message) {
         if (!isLoggedIn && opcode != OpCodes.LOGRQ) {
             connections.send(connectionId, createErrorMessage(Errors.NOT_LOGGED_IN));
             return;
@@ -49,9 +80,14 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
             case RRQ:
                 // start at index 2 (after the opcode) and read everything except the last byte
                 handleRRQ(new String(message, 2, message.length - 3, StandardCharsets.UTF_8));
+                requestedOptions.clear(); // options only apply to the request that follows them
                 break;
             case WRQ:
                 handleWRQ(new String(message, 2, message.length - 3, StandardCharsets.UTF_8));
+                requestedOptions.clear();
+                break;
+            case OPT:
+                handleOPT(message);
                 break;
             case LOGRQ:
                 handleLogin(new String(message, 2, message.length - 3, StandardCharsets.UTF_8));
@@ -74,6 +110,8 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
                 break;
             case DISC:
                 isLoggedIn = false;
+                closeReadTransfer();
+                abortWriteTransfer();
                 connections.send(connectionId, buildAckPacket((short) 0));
                 connections.disconnect(connectionId);
                 break;
@@ -88,27 +126,146 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
         return shouldTerminate;
     }
 
+    @Override
+    public void onClose() {
+        lock.lock();
+
+        try {
+            closed = true;
+            cancel(idleTimer);
+            cancel(transferTimer);
+
+            // the client is gone, don't leave open files or half uploaded ones behind
+            closeReadTransfer();
+            abortWriteTransfer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
-     * Create an error packet.
+     * Arm a timer.
      * 
-     * @param err an error code in the form of an enum.
-     * @return an error packet.
+     * @param task   runs on the timer thread.
+     * @param millis how long to wait.
+     * @return the timeout, or null if millis is 0 (no limit).
      */
-    private byte[] createErrorMessage(Errors err) {
-        byte[] msg = err.getMessage().getBytes();
-        byte[] pac = new byte[5 + msg.length];
+    private HashedWheelTimer.Timeout schedule(Runnable task, long millis) {
+        return millis > 0 ? PublicResources.timer.schedule(task, millis, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Start counting the transfer timeout, when a transfer or a listing starts.
+     * The timer is not moved on every DATA/ACK, that only updates
+     * lastProgressTime, and the timer checks it when it goes off.
+     */
+    private void watchTransfer() {
+        lastProgressTime = lastMessageTime;
+
+        if (transferTimer == null)
+            transferTimer = schedule(this::transferTimerExpired, PublicResources.transferTimeout);
+    }
 
-        pac[0] = OpCodes.ERROR.getBytes()[0];
-        pac[1] = OpCodes.ERROR.getBytes()[1];
-        pac[2] = err.getBytes()[0];
-        pac[3] = err.getBytes()[1];
+    /**
+     * The transfer timer went off: drop the transfer (or listing) if the client
+     * did not send its next DATA/ACK in time, so a stalled client does not keep
+     * a file open or a half uploaded file and its name, otherwise wait for the
+     * rest of the time.
+     * In time is transferTimeout, plus the time a client on a link of
+     * transferMinRate takes to read the blocks it was sent and did not
+     * acknowledge yet: a big window may take a slow client a while, and it
+     * answers nothing until it has the whole window.
+     */
+    private void transferTimerExpired() {
+        if (!lock.tryLock()) {
+            // processing a packet, maybe waiting for a file lock. Don't hold up the
+            // timeouts of everyone else, look again soon. transferTimer still counts
+            // as armed meanwhile, a retry that comes after onClose finds it closed
+            PublicResources.timer.schedule(this::transferTimerExpired, BUSY_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        try {
+            transferTimer = null;
+
+            if (closed || (readTransfer == null && writeTransfer == null && listing == null))
+                return; // done meanwhile
+
+            long timeout = TimeUnit.MILLISECONDS.toNanos(PublicResources.transferTimeout);
+            long waited = System.nanoTime() - lastProgressTime;
+
+            if (readTransfer != null && PublicResources.transferMinRate > 0)
+                timeout += readTransfer.getBytesInFlight() * 1_000_000_000L / PublicResources.transferMinRate;
+
+            if (timeout > 0 && waited < timeout) {
+                transferTimer = schedule(this::transferTimerExpired, TimeUnit.NANOSECONDS.toMillis(timeout - waited) + 1);
+                return;
+            }
+
+            // the error is counted for the request of the transfer
+            requestOpcode = readTransfer != null ? OpCodes.RRQ : writeTransfer != null ? OpCodes.WRQ : OpCodes.DIRQ;
+
+            closeReadTransfer();
+            abortWriteTransfer();
+            listing = null;
+            PublicResources.metrics.transferTimedOut();
+            connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The idle timer went off: close the connection if the client sent nothing
+     * for idleTimeout, otherwise wait for the rest of the time. A client that
+     * is in the middle of a transfer is not idle, the transfer timer watches it.
+     * Closing the connection ends the thread that waits for the client to send
+     * something, and the connection then cleans up through onClose.
+     */
+    private void idleTimerExpired() {
+        if (!lock.tryLock()) {
+            // processing a packet, so not idle. Look again soon, like transferTimerExpired
+            PublicResources.timer.schedule(this::idleTimerExpired, BUSY_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        try {
+            idleTimer = null;
+
+            if (closed)
+                return;
+
+            long timeout = TimeUnit.MILLISECONDS.toNanos(PublicResources.idleTimeout);
+            long idle = readTransfer != null || writeTransfer != null || listing != null ? 0
+                    : System.nanoTime() - lastMessageTime;
+
+            if (timeout > 0 && idle < timeout) {
+                idleTimer = schedule(this::idleTimerExpired, TimeUnit.NANOSECONDS.toMillis(timeout - idle) + 1);
+                return;
+            }
 
-        for (int i = 0; i < msg.length; i++)
-            pac[4 + i] = msg[i];
+            PublicResources.metrics.idleConnectionClosed();
+            connections.close(connectionId);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        pac[pac.length - 1] = 0;
+    /**
+     * Get an error packet.
+     * 
+     * @param err an error code in the form of an enum.
+     * @return an error packet.
+     */
+    private byte[] createErrorMessage(Errors err) {
+        PublicResources.metrics.errorSent(requestOpcode);
 
-        return pac;
+        return err.getPacket(); // shared, built once per error
     }
 
     /**
@@ -117,26 +274,76 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
      * @param blockNumber
      */
     private void handleACK(short blockNumber) {
-        byte[] packetToAcknowledge = packetsQueue.peek();
-        short packetBlockNum = TftpEncoderDecoder.bytesToShort(packetToAcknowledge[4], packetToAcknowledge[5]);
-        OpCodes opcode = OpCodes.extractOpcode(packetToAcknowledge);
+        lastProgressTime = lastMessageTime;
 
-        System.out.println("ACK " + packetBlockNum);
+        if (readTransfer != null) {
+            handleReadTransferACK(blockNumber);
+            return;
+        }
 
-        if (opcode == OpCodes.DATA) {
-            if (packetBlockNum != blockNumber) {
-                connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED));
-                return;
-            }
+        if (listing == null) {
+            // nothing was sent
+            connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED));
+            return;
+        }
 
-            packetsQueue.remove(); // the first packed was ssufuuly handle
+        byte[] packetToAcknowledge = listing.get(listingPacketsAcked);
+        short packetBlockNum = TftpEncoderDecoder.bytesToShort(packetToAcknowledge[4], packetToAcknowledge[5]);
 
-            if (!packetsQueue.isEmpty()) {
-                connections.send(connectionId, packetsQueue.peek());
-            }
-        } else {
+        if (packetBlockNum != blockNumber) {
             connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED));
+            return;
         }
+
+        if (++listingPacketsAcked < listing.size())
+            connections.send(connectionId, listing.get(listingPacketsAcked));
+        else
+            listing = null; // the whole listing was sent
+    }
+
+    /**
+     * Handle an ack of a block of the file that is being read, and send the next
+     * ones.
+     * 
+     * @param blockNumber
+     */
+    private void handleReadTransferACK(short blockNumber) {
+        if (!readTransfer.acknowledge(blockNumber)) {
+            connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED));
+            return;
+        }
+
+        if (readTransfer.isComplete()) {
+            PublicResources.metrics.readTransferCompleted(System.nanoTime() - readTransfer.getStartTime());
+            closeReadTransfer();
+            return;
+        }
+
+        sendReadWindow();
+    }
+
+    /**
+     * Send the next window of the file that is being read.
+     */
+    private void sendReadWindow() {
+        try {
+            readTransfer.sendWindow(connections, connectionId);
+        } catch (IOException e) {
+            closeReadTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+        }
+    }
+
+    /**
+     * Close the file that is being read, if any. Its last blocks may still wait
+     * to be written as regions of the file, so it is closed after them.
+     */
+    private void closeReadTransfer() {
+        if (readTransfer == null)
+            return;
+
+        connections.closeAfterSent(connectionId, readTransfer);
+        readTransfer = null;
     }
 
     /**
@@ -145,29 +352,44 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
      * @param filename the filename as a string.
      */
     private void handleRRQ(String filename) {
-        try {
-            PublicResources.accessSemaphore.acquire();
+        FileStore store = PublicResources.fileStore;
 
-            // open the file
-            File file = new File(directoryPath + File.separator + filename);
-            FileInputStream fstream = new FileInputStream(file);
+        PublicResources.fileLocks.lockRead(filename);
 
-            if (!file.exists()) {
+        try {
+            FileStore.Attributes attributes = store.stat(filename);
+
+            if (attributes == null) {
                 connections.send(connectionId, createErrorMessage(Errors.FILE_NOT_FOUND));
-                fstream.close();
-                PublicResources.accessSemaphore.release();
                 return;
             }
 
-            addDataPackets(filename);
+            // blocks are sent lazily, a window at a time
+            closeReadTransfer();
+
+            TransferOptions options = negotiateOptions();
+
+            negotiateRange(options, attributes.getSize());
 
-            connections.send(connectionId, packetsQueue.peek());
+            // a resumed or ranged download starts in the middle of a block, the cache has whole
+            // files, and it has them uncompressed
+            List<byte[]> cachedPackets = !options.isWholeFile() || options.isCompressed() ? null
+                    : PublicResources.fileCache.getPackets(filename, attributes, store, options.getBlockSize());
 
-            fstream.close();
-        } catch (IOException | InterruptedException ignored) {
+            readTransfer = cachedPackets != null ? new ReadTransfer(cachedPackets, options)
+                    : new ReadTransfer(store.open(filename), options);
+        } catch (IOException e) {
+            closeReadTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+            return;
         } finally {
-            PublicResources.accessSemaphore.release();
+            PublicResources.fileLocks.unlockRead(filename);
         }
+
+        // the file is already open, no need to hold the lock while reading it
+        watchTransfer();
+        acknowledgeOptions();
+        sendReadWindow();
     }
 
     /**
@@ -176,110 +398,245 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
      * @param filename the filename as a string.
      */
     private void handleWRQ(String filename) {
-        try {
-            PublicResources.accessSemaphore.acquire();
+        if (writeTransfer != null) {
+            // in the middle of another writing!
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+            return;
+        }
+
+        FileStore store = PublicResources.fileStore;
 
-            // open the file
-            File file = new File(directoryPath + File.separator + filename);
+        if (store.isReserved(filename)) {
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+            return;
+        }
 
-            if (file.exists()) {
+        TransferOptions options;
+
+        PublicResources.fileLocks.lockWrite(filename);
+
+        try {
+            // the name is taken by an existing file or by another upload
+            if (store.stat(filename) != null || !PublicResources.uploadingFiles.add(filename)) {
                 connections.send(connectionId, createErrorMessage(Errors.FILE_EXISTS));
-                PublicResources.accessSemaphore.release();
                 return;
             }
 
-            if (!newFilename.isEmpty()) {
-                // in the middle of another writing!
+            try {
+                options = negotiateOptions();
+                negotiateContentHash(options);
+
+                // blocks are written to the store as they arrive
+                writeTransfer = new WriteTransfer(store.create(filename), filename, options);
+            } catch (IOException e) {
+                PublicResources.uploadingFiles.remove(filename);
                 connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
-                PublicResources.accessSemaphore.release();
                 return;
             }
+        } finally {
+            PublicResources.fileLocks.unlockWrite(filename);
+        }
+
+        if (options.getContentHash() != null && uploadExisting(options.getContentHash()))
+            return;
+
+        watchTransfer();
+        acknowledgeOptions();
+        connections.send(connectionId, buildAckPacket((short) 0)); // send ack packet
+    }
+
+    /**
+     * Complete the WRQ with no DATA, if a file with the same content exists.
+     * 
+     * @param hash the SHA-256 of the content, as the client sent it.
+     * @return true iff the WRQ is over (completed, or failed and the client was
+     *         told), false if the client should upload the file.
+     */
+    private boolean uploadExisting(String hash) {
+        String existing = PublicResources.contentIndex.find(hash);
+
+        if (existing == null)
+            return false;
 
-            newFilename = filename; // save the name of the file that we'll create
+        PublicResources.fileLocks.lockRead(existing);
 
-            connections.send(connectionId, buildAckPacket((short) 0)); // send ack packet
-        } catch (InterruptedException ignored) {
+        try {
+            if (!PublicResources.contentIndex.isCurrent(existing, hash))
+                return false;
+
+            writeTransfer.useExisting(existing, hash);
+        } catch (IOException e) {
+            abortWriteTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+            return true;
         } finally {
-            PublicResources.accessSemaphore.release();
+            PublicResources.fileLocks.unlockRead(existing);
         }
+
+        PublicResources.metrics.uploadDeduplicated();
+        sendOACK(TftpOptions.DEDUP, hash);
+        connections.send(connectionId, buildAckPacket((short) 0));
+        createNewFile();
+
+        return true;
     }
 
     /**
-     * Handle Delete Requests.
+     * Handle an option request, it applies to the next RRQ/WRQ.
      * 
-     * @param filename the filename as a string.
+     * @param packet the OPT packet.
      */
-    private void handleDELRQ(String filename) {
-        try {
-            PublicResources.accessSemaphore.acquire();
+    private void handleOPT(byte[] packet) {
+        if (requestedOptions.size() < MAX_REQUESTED_OPTIONS)
+            requestedOptions.put(TftpOptions.getName(packet).toLowerCase(), TftpOptions.getValue(packet));
+    }
+
+    /**
+     * Decide the values of the options the client requested for the current
+     * RRQ/WRQ. Options that were not requested, are unknown or have bad values
+     * keep their defaults.
+     * 
+     * @return the options of the transfer.
+     */
+    private TransferOptions negotiateOptions() {
+        TransferOptions options = new TransferOptions();
+        int windowSize = requestedInt(TftpOptions.WINDOW_SIZE, 1, TftpOptions.MAX_WINDOW_SIZE);
+        int blockSize = requestedInt(TftpOptions.BLOCK_SIZE, TftpOptions.MIN_BLOCK_SIZE, TftpOptions.MAX_BLOCK_SIZE);
 
-            // open the file
-            File file = new File(directoryPath + File.separator + filename);
+        acceptedOptions.clear();
 
-            if (file.exists()) {
-                file.delete();
-                connections.send(connectionId, buildAckPacket((short) 0));
-                sendBCAST(false, filename); // send all users about the update.
-            } else {
-                connections.send(connectionId, createErrorMessage(Errors.FILE_NOT_FOUND));
-            }
+        if (windowSize > 0) {
+            options.setWindowSize(windowSize);
+            acceptedOptions.put(TftpOptions.WINDOW_SIZE, Integer.toString(windowSize));
+        }
 
-        } catch (InterruptedException ignored) {
-        } finally {
-            PublicResources.accessSemaphore.release();
+        if (blockSize > 0) {
+            options.setBlockSize(blockSize);
+            acceptedOptions.put(TftpOptions.BLOCK_SIZE, Integer.toString(blockSize));
+        }
+
+        if (TftpOptions.DEFLATE.equalsIgnoreCase(requestedOptions.get(TftpOptions.COMPRESS))) {
+            options.setCompressed(true);
+            acceptedOptions.put(TftpOptions.COMPRESS, TftpOptions.DEFLATE);
         }
+
+        return options;
     }
 
     /**
-     * Handle Directory Requests.
+     * Decide which part of the file a RRQ sends, if the client asked to resume
+     * it or for a range of it, and tell the size of the file if it was asked.
+     * 
+     * @param options  the options of the transfer.
+     * @param fileSize the size of the file that is read.
      */
-    private void handleDIRQ() {
-        try {
-            PublicResources.accessSemaphore.acquire();
+    private void negotiateRange(TransferOptions options, long fileSize) {
+        long offset = requestedLong(TftpOptions.OFFSET, 0, fileSize);
+        long length = requestedLong(TftpOptions.LENGTH, 0, fileSize - Math.max(0, offset));
 
-            File folder = new File(directoryPath);
+        if (offset >= 0) {
+            options.setOffset(offset);
+            acceptedOptions.put(TftpOptions.OFFSET, Long.toString(offset));
+        }
 
-            File[] files = folder.listFiles();
-            ArrayDeque<Byte> message = new ArrayDeque<>();
-            byte[] currentPacket;
+        if (length >= 0) {
+            options.setLength(length);
+            acceptedOptions.put(TftpOptions.LENGTH, Long.toString(length));
+        }
 
-            if (files != null) {
-                lastBlockNumber = 0;
+        if (requestedOptions.containsKey(TftpOptions.TRANSFER_SIZE))
+            acceptedOptions.put(TftpOptions.TRANSFER_SIZE, Long.toString(fileSize));
+    }
 
-                for (File file : files) {
-                    if (message.size() == TftpEncoderDecoder.MAX_DATA_PACKET) {
-                        currentPacket = buildDataPacket(message, ++lastBlockNumber);
-                        packetsQueue.add(currentPacket);
-                        message.clear();
-                    }
+    /**
+     * Take the hash of the content a WRQ uploads, if the client sent one.
+     * 
+     * @param options the options of the transfer.
+     */
+    private void negotiateContentHash(TransferOptions options) {
+        String hash = requestedOptions.get(TftpOptions.SHA256);
 
-                    // assuming the file is not a directory
+        if (hash == null || !hash.matches("[0-9a-fA-F]{64}"))
+            return;
 
-                    for (byte b : file.getName().getBytes()) {
-                        message.add(b);
+        options.setContentHash(hash.toLowerCase());
+        acceptedOptions.put(TftpOptions.SHA256, hash.toLowerCase());
+    }
 
-                        if (message.size() == TftpEncoderDecoder.MAX_DATA_PACKET) {
-                            currentPacket = buildDataPacket(message, ++lastBlockNumber);
-                            packetsQueue.add(currentPacket);
-                            message.clear();
-                        }
-                    }
+    /**
+     * @return the value of a numeric option that was requested, fitted into the
+     *         range, or -1 if it was not requested or is not a number.
+     */
+    private long requestedLong(String name, long min, long max) {
+        String value = requestedOptions.get(name);
 
-                    message.add((byte) 0);
-                }
+        return value == null ? -1 : TftpOptions.parseLong(value, min, max);
+    }
+
+    /**
+     * @return the value of a numeric option that was requested, fitted into the
+     *         range, or -1 if it was not requested or is not a number.
+     */
+    private int requestedInt(String name, int min, int max) {
+        String value = requestedOptions.get(name);
+
+        return value == null ? -1 : TftpOptions.parseInt(value, min, max);
+    }
+
+    /**
+     * Send an OACK for every option that was accepted by negotiateOptions.
+     */
+    private void acknowledgeOptions() {
+        for (Map.Entry<String, String> option : acceptedOptions.entrySet())
+            sendOACK(option.getKey(), option.getValue());
+    }
+
+    private void sendOACK(String name, String value) {
+        connections.send(connectionId, TftpOptions.buildPacket(OpCodes.OACK, name, value));
+    }
+
+    /**
+     * Handle Delete Requests.
+     * 
+     * @param filename the filename as a string.
+     */
+    private void handleDELRQ(String filename) {
+        boolean deleted;
 
-                if (!message.isEmpty())
-                    message.removeLast();
+        PublicResources.fileLocks.lockWrite(filename);
 
-                currentPacket = buildDataPacket(message, ++lastBlockNumber);
-                packetsQueue.add(currentPacket);
+        try {
+            deleted = PublicResources.fileStore.delete(filename);
 
-                connections.send(connectionId, packetsQueue.peek());
+            if (deleted) {
+                PublicResources.directoryListing.fileRemoved(filename);
+                PublicResources.fileCache.invalidate(filename);
+                PublicResources.contentIndex.fileRemoved(filename);
             }
-        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            deleted = false; // reported like a file that is not there
         } finally {
-            PublicResources.accessSemaphore.release();
+            PublicResources.fileLocks.unlockWrite(filename);
         }
+
+        if (deleted) {
+            connections.send(connectionId, buildAckPacket((short) 0));
+            sendBCAST(false, filename); // send all users about the update.
+        } else {
+            connections.send(connectionId, createErrorMessage(Errors.FILE_NOT_FOUND));
+        }
+    }
+
+    /**
+     * Handle Directory Requests.
+     */
+    private void handleDIRQ() {
+        // the listing is shared and never changes once built, no lock needed
+        listing = PublicResources.directoryListing.getPackets();
+        listingPacketsAcked = 0;
+
+        watchTransfer();
+        connections.send(connectionId, listing.get(0));
     }
 
     /**
@@ -289,12 +646,12 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
      */
     private void handleLogin(String username) {
         // the clinet is alredy looge d in.
-        if (isLoggedIn || PublicResources.usersMap.containsValue(username)) {
+        // claims the name, unless someone has it
+        if (isLoggedIn || !PublicResources.sessions.login(connectionId, username)) {
             connections.send(connectionId, createErrorMessage(Errors.ALR_LOGGED_IN));
             return;
         }
 
-        PublicResources.usersMap.put(connectionId, username);
         isLoggedIn = true;
 
         // send ack
@@ -308,16 +665,38 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
      */
     private void handleData(byte[] packet) {
         short blockNumber = TftpEncoderDecoder.bytesToShort(packet[4], packet[5]);
-        short packetSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]);
+        int packetSize = TftpEncoderDecoder.bytesToShort(packet[2], packet[3]) & 0xffff; // up to 64K
 
         // System.out.println("GOT DATA BN#" + blockNumber);
 
-        connections.send(connectionId, buildAckPacket(blockNumber));
+        lastProgressTime = lastMessageTime;
+
+        if (writeTransfer == null) {
+            // no WRQ
+            connections.send(connectionId, createErrorMessage(Errors.ILLEGAL_OP));
+            return;
+        }
 
         // in the server we know that the data is a file
-        newFileBytes.add(packet);
+        try {
+            writeTransfer.write(packet, 6, packet.length - 6);
+        } catch (ZipException e) {
+            abortWriteTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.NOT_DEFINED)); // not a DEFLATE stream
+            return;
+        } catch (IOException e) {
+            abortWriteTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.DISC_FULL));
+            return;
+        }
+
+        boolean lastBlock = packetSize < writeTransfer.getBlockSize();
 
-        if (packetSize < TftpEncoderDecoder.MAX_DATA_PACKET) {
+        // with a window, only the last block of each window is acknowledged
+        if (writeTransfer.blockReceived(lastBlock))
+            connections.send(connectionId, buildAckPacket(blockNumber));
+
+        if (lastBlock) {
             createNewFile();
         }
     }
@@ -355,128 +734,62 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]> {
 
         packet[packet.length - 1] = (byte) 0;
 
-        for (Map.Entry<Integer, String> entry : PublicResources.usersMap.entrySet()) {
-            Integer id = entry.getKey();
-            connections.send(id, packet);
-        }
+        // encoded once, sent by the dispatcher so this client does not wait for everyone else
+        PublicResources.broadcasts.broadcast(connections, packet);
     }
 
     /**
-     * Get a message and wrap it with a DATA packet header.
-     * 
-     * @param bytes    an array of bytes that are the message.
-     * @param blockNum the block number of this packet.
-     * @return a byte array.
-     */
-    private byte[] buildDataPacket(ArrayDeque<Byte> bytes, short blockNum) {
-        byte[] packet = new byte[6 + bytes.size()];
-        int bytesSize = bytes.size();
-
-        // opcode
-        packet[0] = OpCodes.DATA.getBytes()[0];
-        packet[1] = OpCodes.DATA.getBytes()[1];
-
-        // packet size
-        packet[2] = TftpEncoderDecoder.shortToBytes((short) bytes.size())[0];
-        packet[3] = TftpEncoderDecoder.shortToBytes((short) bytes.size())[1];
-
-        // block no.
-        packet[4] = TftpEncoderDecoder.shortToBytes(blockNum)[0];
-        packet[5] = TftpEncoderDecoder.shortToBytes(blockNum)[1];
-
-        // add the bytes
-        for (int j = 0; j < bytesSize; j++) {
-            packet[6 + j] = bytes.removeFirst();
-        }
-
-        return packet;
-    }
-
-    /**
-     * uild an ACK packet with a given block number.
+     * Get the ACK packet of a given block number.
      * 
      * @param blockNum
      * @return a byte array.
      */
     private byte[] buildAckPacket(short blockNum) {
-        byte[] packet = new byte[4];
-        byte[] block = TftpEncoderDecoder.shortToBytes(blockNum);
-
-        packet[0] = OpCodes.ACK.getBytes()[0];
-        packet[1] = OpCodes.ACK.getBytes()[1];
-        packet[2] = block[0];
-        packet[3] = block[1];
-
-        return packet;
+        return TftpEncoderDecoder.ackPacket(blockNum); // shared, built once per block number
     }
 
     /**
-     * Read a file into packets and insert them to the queue.
-     * 
-     * @param filename
+     * Create the file that we got in WRQ, by giving the uploaded file its name.
      */
-    private void addDataPackets(String filename) {
-        File fileToSend = new File(directoryPath + File.separator + filename);
-
-        // already checked the existence of the file
-
-        try (FileInputStream fstream = new FileInputStream(fileToSend)) {
-            ArrayDeque<Byte> packetData = new ArrayDeque<>();
-            int nextByte;
-            byte[] packet;
+    private void createNewFile() {
+        String filename = writeTransfer.getFilename();
 
-            lastBlockNumber = 0;
+        PublicResources.fileLocks.lockWrite(filename);
 
-            // read each byte
-            while ((nextByte = fstream.read()) != -1) {
-                packetData.add((byte) nextByte);
+        try {
+            writeTransfer.publish();
+            PublicResources.directoryListing.fileAdded(filename);
+            PublicResources.fileCache.invalidate(filename);
+            PublicResources.contentIndex.fileAdded(filename, writeTransfer.getContentHash());
+        } catch (IOException e) {
+            abortWriteTransfer();
+            connections.send(connectionId, createErrorMessage(Errors.ACCESS_VIOLATION));
+            return;
+        } finally {
+            PublicResources.fileLocks.unlockWrite(filename);
+        }
 
-                // if reached max num of bytes in a packet, create one
-                if (packetData.size() == TftpEncoderDecoder.MAX_DATA_PACKET) {
-                    packet = buildDataPacket(packetData, ++lastBlockNumber);
-                    packetsQueue.add(packet);
-                    packetData.clear();
-                }
-            }
+        PublicResources.uploadingFiles.remove(filename);
+        PublicResources.metrics.writeTransferCompleted(System.nanoTime() - writeTransfer.getStartTime());
+        writeTransfer = null;
 
-            // last packet
-            packet = buildDataPacket(packetData, ++lastBlockNumber);
-            packetsQueue.add(packet);
-        } catch (IOException ignored) {
-            System.out.println(ignored.getMessage());
-        }
+        sendBCAST(true, filename); // send all useres about the update
     }
 
     /**
-     * Create the file that we got in WRQ.
+     * Drop the file that is being uploaded, if any.
      */
-    private void createNewFile() {
-        Path filePath = Paths.get(directoryPath + File.separator + newFilename);
-
-        // Create the directory if it doesn't exist
-
-        File directory = new File(directoryPath);
-
-        if (!directory.exists()) {
-            directory.mkdir();
-        }
-
-        // Create the file
-
-        File newFile = new File(filePath.toString());
-        // System.out.println(newFile.createNewFile());
-
-        byte[] packet = null;
+    private void abortWriteTransfer() {
+        if (writeTransfer == null)
+            return;
 
-        try (FileOutputStream fStream = new FileOutputStream(newFile, true)) {
-            while (!newFileBytes.isEmpty()) {
-                packet = newFileBytes.removeFirst();
-                fStream.write(packet, 6, packet.length - 6);
-            }
+        try {
+            writeTransfer.close();
         } catch (IOException ignored) {
-        } finally {
-            sendBCAST(true, newFilename); // send all useres about the update
-            newFilename = "";
         }
+
+        PublicResources.uploadingFiles.remove(writeTransfer.getFilename());
+        writeTransfer = null;
     }
+
 }
@@ -1,13 +1,144 @@
 package bgu.spl.net.impl.tftp;
 
+import bgu.spl.net.srv.OutboundPolicy;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerMetrics;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class TftpServer {
     public static void main(String[] args) {
+        // usage: TftpServer [port] [tpc|virtual|reactor] [reactor threads]
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7777;
+        String mode = args.length > 1 ? args[1] : "tpc";
+        OutboundPolicy<byte[]> outboundPolicy = readOutboundPolicy();
+
+        PublicResources.fileCache = readFileCache();
+        readTimeouts();
+        readFileStore();
+        indexContentInBackground();
+
+        exportMetrics();
 
         try {
-            Server.threadPerClient(7777, TftpProtocol::new, TftpEncoderDecoder::new).serve();
+            if (mode.equals("reactor")) {
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+                Server.reactor(threads, port, TftpProtocol::new, TftpEncoderDecoder::new, outboundPolicy).serve();
+            } else if (mode.equals("virtual")) {
+                Server.virtualThreadPerClient(port, TftpProtocol::new, TftpEncoderDecoder::new, outboundPolicy).serve();
+            } else {
+                Server.threadPerClient(port, TftpProtocol::new, TftpEncoderDecoder::new, outboundPolicy).serve();
+            }
         } catch (Exception ignored) {
         }
     }
+
+    /**
+     * Register the metrics as MBeans (bgu.spl.net:type=ServerMetrics and
+     * bgu.spl.net:type=TftpMetrics), and print them every N seconds if
+     * -Dtftp.metrics.interval=N is set.
+     */
+    private static void exportMetrics() {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            mbeans.registerMBean(ServerMetrics.INSTANCE, new ObjectName("bgu.spl.net:type=ServerMetrics"));
+            mbeans.registerMBean(PublicResources.metrics, new ObjectName("bgu.spl.net:type=TftpMetrics"));
+        } catch (JMException e) {
+            System.out.println("could not register the metrics: " + e);
+        }
+
+        int interval = Integer.getInteger("tftp.metrics.interval", 0);
+
+        if (interval <= 0)
+            return;
+
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        dumper.scheduleAtFixedRate(() -> {
+            System.out.println("[metrics] " + ServerMetrics.INSTANCE);
+            System.out.println("[metrics] " + PublicResources.metrics);
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hash the files that are already in the store, so uploads of their
+     * content are deduplicated too. The server does not wait for it.
+     */
+    private static void indexContentInBackground() {
+        Thread indexer = new Thread(PublicResources.contentIndex::indexExistingFiles, "content-index");
+
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Choose where the files are kept from the system properties:
+     * -Dtftp.store=directory (the default) keeps them in the directory set by
+     * -Dtftp.store.directory (Files by default), -Dtftp.store=memory keeps them
+     * in memory, so they are gone when the server stops.
+     */
+    private static void readFileStore() {
+        String store = System.getProperty("tftp.store", "directory");
+
+        if (store.equals("memory"))
+            PublicResources.useFileStore(new MemoryFileStore());
+        else if (!System.getProperty("tftp.store.directory", "Files").equals("Files"))
+            PublicResources.useFileStore(new DirectoryFileStore(System.getProperty("tftp.store.directory")));
+    }
+
+    /**
+     * Read the timeouts from the system properties, in milliseconds (0 for no
+     * limit): -Dtftp.timeout.transfer=MS drops a transfer whose client did not
+     * send its next DATA/ACK for that long (30s by default), plus the time its
+     * unacknowledged blocks take at -Dtftp.timeout.minRate=BYTES_PER_SECOND
+     * (16K by default), -Dtftp.timeout.idle=MS closes the connection of a
+     * client that sent nothing at all for that long (off by default).
+     */
+    private static void readTimeouts() {
+        PublicResources.transferTimeout = Long.getLong("tftp.timeout.transfer", PublicResources.transferTimeout);
+        PublicResources.transferMinRate = Long.getLong("tftp.timeout.minRate", PublicResources.transferMinRate);
+        PublicResources.idleTimeout = Long.getLong("tftp.timeout.idle", PublicResources.idleTimeout);
+    }
+
+    /**
+     * Read the size of the file cache from the system properties:
+     * -Dtftp.cache.capacity=BYTES (0 disables the cache) and
+     * -Dtftp.cache.maxFileSize=BYTES.
+     * 
+     * @return the cache.
+     */
+    private static FileCache readFileCache() {
+        return new FileCache(Long.getLong("tftp.cache.capacity", FileCache.DEFAULT_CAPACITY),
+                Long.getLong("tftp.cache.maxFileSize", FileCache.DEFAULT_MAX_FILE_SIZE));
+    }
+
+    /**
+     * Read the limit on the packets that wait for a client from the system
+     * properties: -Dtftp.outbound.capacity=N, -Dtftp.outbound.dropBroadcasts=false
+     * to disconnect a client that falls behind on broadcasts too instead of
+     * dropping them, and -Dtftp.outbound.maxDropped=N to disconnect a client
+     * that missed N broadcasts in a row.
+     * 
+     * @return the policy.
+     */
+    private static OutboundPolicy<byte[]> readOutboundPolicy() {
+        int capacity = Integer.getInteger("tftp.outbound.capacity", OutboundPolicy.DEFAULT_CAPACITY);
+        boolean dropBroadcasts = Boolean.parseBoolean(System.getProperty("tftp.outbound.dropBroadcasts", "true"));
+        int maxDropped = Integer.getInteger("tftp.outbound.maxDropped", capacity);
+
+        return new OutboundPolicy<>(capacity,
+                packet -> dropBroadcasts && OpCodes.extractOpcode(packet) == OpCodes.BCAST,
+                maxDropped);
+    }
 }
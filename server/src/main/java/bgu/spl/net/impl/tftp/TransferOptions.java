@@ -0,0 +1,88 @@
+package bgu.spl.net.impl.tftp;
+
+/**
+ * The options negotiated for a single RRQ/WRQ. Options the client did not
+ * request keep their default values.
+ */
+class TransferOptions {
+    private int windowSize = TftpOptions.DEFAULT_WINDOW_SIZE;
+    private int blockSize = TftpOptions.DEFAULT_BLOCK_SIZE;
+    private long offset = 0;
+    private long length = -1; // the rest of the file
+    private boolean compressed = false;
+    private String contentHash = null;
+
+    /**
+     * @return how many blocks may be sent before waiting for an ACK.
+     */
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return the size of every DATA block but the last one.
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the byte of the file a RRQ starts from.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return how many bytes a RRQ sends from its offset, -1 for the rest of
+     *         the file.
+     */
+    long getLength() {
+        return length;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * @return true iff a RRQ sends the whole file.
+     */
+    boolean isWholeFile() {
+        return offset == 0 && length < 0;
+    }
+
+    /**
+     * @return true iff the DATA blocks carry the DEFLATE stream of the file.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return the SHA-256 (in hex) the client says a WRQ uploads, or null.
+     */
+    String getContentHash() {
+        return contentHash;
+    }
+
+    void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+}
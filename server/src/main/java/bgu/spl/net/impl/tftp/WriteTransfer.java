@@ -0,0 +1,184 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A file that is being uploaded by a client (WRQ).
+ * Every block is written to the FileStore as soon as it arrives, and the file
+ * is published (gets its name) only once the last block was written, so other
+ * clients never see half uploaded files.
+ * The client may send up to windowSize blocks before waiting for an ACK, so
+ * only every windowSize-th block (and the last one) is acknowledged.
+ * The blocks of a compressed upload carry the DEFLATE stream of the file, it
+ * is inflated as it arrives.
+ * The content is hashed as it is written, for the ContentIndex.
+ */
+class WriteTransfer implements Closeable {
+    private final String filename;
+    private final FileStore.Upload upload;
+    private final ByteBuffer buffer; // a block on its way to the file, reused
+    private final int windowSize;
+    private final int blockSize;
+    private long blocksReceived = 0;
+    private final long startTime = System.nanoTime();
+    private final Inflater inflater; // null unless the upload is compressed
+    private final byte[] inflated; // inflated data on its way to the file, reused
+    private final MessageDigest digest = ContentIndex.newDigest(); // of what was written so far
+    private final String expectedHash; // as the client said, or null
+    private String contentHash; // known once the content is complete
+
+    /**
+     * @param upload   the file in the store, this transfer closes it.
+     * @param filename the name the file will get.
+     * @param options  the options of the transfer.
+     */
+    WriteTransfer(FileStore.Upload upload, String filename, TransferOptions options) {
+        this.upload = upload;
+        this.filename = filename;
+        this.windowSize = options.getWindowSize();
+        this.blockSize = options.getBlockSize();
+        this.buffer = ByteBuffer.allocateDirect(blockSize);
+        this.inflater = options.isCompressed() ? new Inflater() : null;
+        this.inflated = options.isCompressed() ? new byte[Math.max(blockSize, 1 << 16)] : null;
+        this.expectedHash = options.getContentHash();
+    }
+
+    /**
+     * Append a block to the file.
+     *
+     * @param bytes  a buffer holding the block.
+     * @param offset where the block starts in the buffer.
+     * @param length the size of the block.
+     * @throws IOException  if the block could not be written.
+     * @throws ZipException if the block is not a valid part of the compressed
+     *                      stream.
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        if (inflater == null) {
+            writeToFile(bytes, offset, length);
+            return;
+        }
+
+        inflater.setInput(bytes, offset, length);
+
+        try {
+            do {
+                writeToFile(inflated, 0, inflater.inflate(inflated));
+            } while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary());
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    private void writeToFile(byte[] bytes, int offset, int length) throws IOException {
+        digest.update(bytes, offset, length);
+
+        // a file channel would copy a heap buffer into a direct one anyway.
+        // a client may send more than a block, so copy as many times as needed
+        while (length > 0) {
+            int chunk = Math.min(length, buffer.capacity());
+
+            buffer.clear();
+            buffer.put(bytes, offset, chunk);
+            buffer.flip();
+            upload.write(buffer);
+
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Count a block that was received.
+     *
+     * @param lastBlock is it the last block of the file?
+     * @return true iff the block should be acknowledged.
+     */
+    boolean blockReceived(boolean lastBlock) {
+        return ++blocksReceived % windowSize == 0 || lastBlock;
+    }
+
+    /**
+     * @return the size of every block but the last one.
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Take the content of an existing file instead of receiving it. Call with
+     * the read lock of the existing file, and publish afterwards.
+     *
+     * @param existing the name of a file with the content.
+     * @param hash     its SHA-256, in hex.
+     * @throws IOException if the content could not be taken.
+     */
+    void useExisting(String existing, String hash) throws IOException {
+        upload.copyOf(existing);
+        contentHash = hash;
+    }
+
+    /**
+     * Give the uploaded file its real name. The caller must make sure the name
+     * is still free.
+     *
+     * @throws IOException  if the file could not be published.
+     * @throws ZipException if the compressed stream ended too soon.
+     * @throws IOException  if the content does not match the hash the client
+     *                      sent.
+     */
+    void publish() throws IOException {
+        if (contentHash == null) { // received, not taken from an existing file
+            if (inflater != null && !inflater.finished())
+                throw new ZipException("the compressed stream is incomplete");
+
+            contentHash = ContentIndex.toHex(digest.digest());
+
+            if (expectedHash != null && !expectedHash.equals(contentHash))
+                throw new IOException("the content does not match its hash");
+        }
+
+        if (inflater != null)
+            inflater.end();
+
+        upload.publish();
+    }
+
+    /**
+     * @return the name the file will get once it is published.
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the SHA-256 of the content in hex, once it was published.
+     */
+    String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return when the transfer started, in System.nanoTime() terms.
+     */
+    long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Drop the upload, deleting what was written so far.
+     */
+    @Override
+    public void close() throws IOException {
+        if (inflater != null)
+            inflater.end();
+
+        upload.close();
+    }
+}
@@ -0,0 +1,78 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A thread pool that executes the tasks of each actor (a connection handler in
+ * our case) one at a time and in submission order, while tasks of different
+ * actors run in parallel.
+ */
+public class ActorThreadPool {
+    // WeakHashMap mutates itself even on get(), so every access is synchronized
+    private final Map<Object, Queue<Runnable>> acts;
+    private final Set<Object> playingNow;
+    private final ExecutorService threads;
+
+    public ActorThreadPool(int threads) {
+        this.threads = Executors.newFixedThreadPool(threads);
+        this.acts = new WeakHashMap<>();
+        this.playingNow = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Submit a task for a given actor.
+     *
+     * @param act the actor the task belongs to.
+     * @param r   the task.
+     */
+    public void submit(Object act, Runnable r) {
+        synchronized (act) {
+            if (!playingNow.contains(act)) {
+                playingNow.add(act);
+                execute(r, act);
+            } else {
+                pendingRunnablesOf(act).add(r);
+            }
+        }
+    }
+
+    /** Stop all the threads of the pool (running tasks are interrupted). */
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    private Queue<Runnable> pendingRunnablesOf(Object act) {
+        synchronized (acts) {
+            return acts.computeIfAbsent(act, key -> new LinkedList<>());
+        }
+    }
+
+    private void execute(Runnable r, Object act) {
+        threads.execute(() -> {
+            try {
+                r.run();
+            } finally {
+                complete(act);
+            }
+        });
+    }
+
+    private void complete(Object act) {
+        synchronized (act) {
+            Queue<Runnable> pending = pendingRunnablesOf(act);
+
+            if (pending.isEmpty()) {
+                playingNow.remove(act);
+            } else {
+                execute(pending.poll(), act);
+            }
+        }
+    }
+}
@@ -4,8 +4,10 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.impl.tftp.ConnectionsImpl;
 import bgu.spl.net.api.BidiMessagingProtocol;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -13,41 +15,59 @@ public abstract class BaseServer<T> implements Server<T> {
     private final int port;
     private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
-    private ServerSocket sock;
+    private ServerSocketChannel sock;
     private final Connections<T> hub;
-    private int lastID;
+    private final OutboundPolicy<T> outboundPolicy;
+    private final AtomicInteger nextId = new AtomicInteger(); // connection ids
 
     public BaseServer(
             int port,
             Supplier<BidiMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
 
+        this(port, protocolFactory, encdecFactory, OutboundPolicy.unbounded());
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            OutboundPolicy<T> outboundPolicy) {
+
         this.port = port;
+        this.outboundPolicy = outboundPolicy;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
         this.sock = null;
         this.hub = new ConnectionsImpl<>();
-        this.lastID = -1;
     }
 
     @Override
     public void serve() {
-        try (ServerSocket serverSock = new ServerSocket(port)) {
+        // a blocking server channel, so every client socket has a channel that
+        // files can be transferred to
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+            serverSock.bind(new InetSocketAddress(port));
+
             System.out.println("Server started");
 
             this.sock = serverSock; // just to be able to close
 
             while (!Thread.currentThread().isInterrupted()) {
-                Socket clientSock = serverSock.accept();
+                Socket clientSock = serverSock.accept().socket();
+                // a DATA header and its file region are two writes, don't let Nagle hold the second
+                clientSock.setTcpNoDelay(true);
+                ServerMetrics.INSTANCE.connectionOpened();
 
                 System.out.println("Client connected!");
 
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
-                        ++lastID,
+                        nextId.getAndIncrement(),
                         hub,
                         clientSock,
                         encdecFactory.get(),
-                        protocolFactory.get());
+                        protocolFactory.get(),
+                        outboundPolicy);
 
                 execute(handler);
             }
@@ -2,74 +2,149 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.BidiMessagingProtocol;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
+/**
+ * A connection that is served by blocking threads: one reads and processes
+ * the messages of the client, and one writes the messages that are sent to it.
+ * Sending only queues the message, so a thread that sends to a slow client
+ * (e.g. a broadcast from another client's thread) never waits for it.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
+    private static final int READ_BUFFER_SIZE = 1 << 13; // 8k
+    private static final long FLUSH_TIMEOUT_MS = 5000; // for the last messages, when the client leaves
     private final BidiMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private final SocketChannel channel;
+    private final OutboundQueue<T> outbound;
+    private InputStream in;
     private volatile boolean connected = true;
     private final int id;
     private final Connections<T> connections;
 
+    /**
+     * @param sock a socket that was accepted by a ServerSocketChannel, the
+     *             messages are written through its channel.
+     */
     public BlockingConnectionHandler(int id, Connections<T> connections, Socket sock, MessageEncoderDecoder<T> reader,
-            BidiMessagingProtocol<T> protocol) {
+            BidiMessagingProtocol<T> protocol, OutboundPolicy<T> outboundPolicy) {
+        if (sock.getChannel() == null)
+            throw new IllegalArgumentException("the socket has no channel");
+
         this.id = id;
         this.connections = connections;
         this.sock = sock;
+        this.channel = sock.getChannel();
         this.encdec = reader;
         this.protocol = protocol;
+        this.outbound = new OutboundQueue<>(outboundPolicy);
     }
 
     @Override
     public void run() {
+        Thread writer = null;
+
         try (Socket sock = this.sock) { // just for automatic closing
+            byte[] readBuffer = new byte[READ_BUFFER_SIZE];
             int read;
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream();
+
+            // the writer is the same kind of thread as this one (platform or virtual)
+            writer = (Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform())
+                    .start(this::writeLoop);
 
             connections.connect(id, this);
             protocol.start(id, connections);
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                // System.out.println("Byte read: " + read);
-                T nextMessage = encdec.decodeNextByte((byte) read);
-
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
-                }
+            // read whatever the socket has and let the decoder frame whole packets out of it
+            while (!protocol.shouldTerminate() && connected && (read = in.read(readBuffer)) >= 0) {
+                ServerMetrics.INSTANCE.bytesRead(read);
+                encdec.decode(ByteBuffer.wrap(readBuffer, 0, read), protocol::process);
             }
 
-        } catch (IOException ignored) {
+            // let the writer send what is left (e.g. the answer to DISC) before the socket closes
+            outbound.close();
+
+            if (connected)
+                writer.join(FLUSH_TIMEOUT_MS);
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            outbound.close();
+
+            if (writer != null)
+                writer.interrupt();
+
+            connections.disconnect(id);
+            protocol.onClose();
+            ServerMetrics.INSTANCE.connectionClosed();
         }
 
     }
 
+    /**
+     * Write the queued messages until the connection closes. Runs on its own
+     * thread.
+     */
+    private void writeLoop() {
+        try {
+            while (outbound.await()) {
+                while (!outbound.writeTo(channel))
+                    ; // a blocking channel writes everything, but just in case
+            }
+        } catch (IOException e) {
+            // nothing more can be written, don't leave the reader serving a client that gets nothing
+            disconnect();
+        } catch (InterruptedException ignored) {
+            // the connection is closing
+        } finally {
+            outbound.discard();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
+        outbound.close();
         sock.close();
     }
 
     @Override
     public void send(T msg) {
-        // According to Hedi's vid
+        if (msg == null)
+            return;
+
+        // the writer keeps the order, so packets of different senders don't mix up
+        if (!outbound.add(msg, ByteBuffer.wrap(encdec.encode(msg))))
+            disconnect();
+    }
 
-        // MAKE SURE PACKETS DON'T MIX UP
+    @Override
+    public void send(T header, FileChannel file, long position, long count) {
+        if (!outbound.add(header, ByteBuffer.wrap(encdec.encode(header)), file, position, count))
+            disconnect();
+    }
 
+    @Override
+    public void closeAfterSent(Closeable resource) {
+        outbound.closeAfterSent(resource);
+    }
+
+    /**
+     * Close a client that does not read what we send. The reading thread then
+     * cleans up.
+     */
+    private void disconnect() {
         try {
-            if (msg != null) {
-                out.write(encdec.encode(msg));
-                out.flush();
-            }
+            close();
         } catch (IOException ignored) {
-
         }
     }
 }
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.channels.FileChannel;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,26 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Send a header message followed by a region of a file. The file bytes go
+     * from the file to the socket without being copied into a message.
+     * The header may be written after this method returns, so the caller must
+     * not change it until the client answered the message.
+     *
+     * @param header   the message that goes before the file bytes.
+     * @param file     the file to send from.
+     * @param position where the region starts in the file.
+     * @param count    the size of the region.
+     */
+    void send(T header, FileChannel file, long position, long count);
+
+    /**
+     * Close a resource once the messages that were sent before it were
+     * written, e.g. the file whose regions they send. It is closed anyway if
+     * the connection closes first.
+     *
+     * @param resource the resource.
+     */
+    void closeAfterSent(Closeable resource);
+
 }
@@ -1,6 +1,7 @@
 package bgu.spl.net.srv;
 
-import java.io.IOException;
+import java.io.Closeable;
+import java.nio.channels.FileChannel;
 
 /**
  * Implement Connections<T> to hold a list of the new ConnectionHandler
@@ -30,10 +31,43 @@ public interface Connections<T> {
      */
     boolean send(int connectionId, T msg);
 
+    /**
+     * Sends a header message followed by a region of a file to the client
+     * represented by the given connectionId. The caller must not change the
+     * header until the client answered the message.
+     * 
+     * @param connectionId a client.
+     * @param header       the message that goes before the file bytes.
+     * @param file         the file to send from.
+     * @param position     where the region starts in the file.
+     * @param count        the size of the region.
+     * @note should call ConnectionHandler.send(header, file, position, count).
+     * @return true iff the client is connected.
+     */
+    boolean send(int connectionId, T header, FileChannel file, long position, long count);
+
+    /**
+     * Close a resource once the messages that were sent to the client before
+     * it were written, e.g. the file of regions that were sent. Closes it right
+     * away if the client is not connected.
+     * 
+     * @param connectionId a client.
+     * @param resource     the resource.
+     */
+    void closeAfterSent(int connectionId, Closeable resource);
+
     /**
      * Removes an active client connectionId from the map.
      * 
      * @param connectionId a client to remove.
      */
     void disconnect(int connectionId);
+
+    /**
+     * Close the connection of a client, as if it left. Its handler then
+     * disconnects it and lets its protocol clean up.
+     * 
+     * @param connectionId a client.
+     */
+    void close(int connectionId);
 }
@@ -0,0 +1,271 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for many timeouts that are rarely due, like one per connection.
+ * The timeouts are kept in a ring of buckets, one per tick, and a single
+ * thread moves along the ring and runs the timeouts of each bucket it passes,
+ * so arming and cancelling a timeout costs O(1) whatever the number of
+ * timeouts. The price is precision: a timeout runs up to a tick late.
+ * Any thread may arm and cancel timeouts, they reach the buckets through
+ * queues that the timer thread drains once a tick. The tasks run on the timer
+ * thread, so they must be short.
+ */
+public class HashedWheelTimer implements Closeable {
+    private static final int MAX_ADDED_PER_TICK = 100_000; // the rest wait for the next tick
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask; // wheel.length is a power of 2
+    private final String threadName;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final long startTime = System.nanoTime(); // deadlines are kept relative to it
+    private volatile boolean closed = false;
+    private volatile Thread worker;
+
+    // the timer thread's own
+    private long tick;
+
+    /**
+     * @param tick       how often the timer thread wakes up, the precision of the
+     *                   timeouts.
+     * @param unit       the unit of tick.
+     * @param wheelSize  how many buckets are in the ring, rounded up to a power
+     *                   of 2. Timeouts that are longer than a round of the ring
+     *                   wait for more rounds in their bucket.
+     * @param threadName the name of the timer thread, it is started by the
+     *                   first timeout.
+     */
+    public HashedWheelTimer(long tick, TimeUnit unit, int wheelSize, String threadName) {
+        if (tick <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("the tick and the wheel size must be positive");
+
+        int size = Integer.highestOneBit(Math.min(wheelSize, 1 << 30) - 1) << 1;
+
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[Math.max(size, 1)];
+        this.mask = wheel.length - 1;
+        this.threadName = threadName;
+
+        for (int i = 0; i < wheel.length; i++)
+            wheel[i] = new Bucket();
+    }
+
+    /**
+     * Run a task once, after a delay.
+     *
+     * @param task  the task, it runs on the timer thread.
+     * @param delay how long to wait.
+     * @param unit  the unit of delay.
+     * @return the timeout, to cancel it.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed)
+            throw new IllegalStateException("the timer is closed");
+
+        start();
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+
+        added.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Stop the timer thread. The timeouts that did not run yet never will.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true))
+            return;
+
+        Thread thread = new Thread(this::run, threadName);
+
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    private void run() {
+        tick = (System.nanoTime() - startTime) / tickNanos;
+
+        while (!closed) {
+            if (!waitForNextTick())
+                break;
+
+            removeCancelled();
+            addNew();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+
+        added.clear();
+        cancelled.clear();
+    }
+
+    /**
+     * Sleep until the end of the current tick.
+     *
+     * @return false if the timer was closed meanwhile.
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+
+        while (!closed) {
+            long sleep = deadline - (System.nanoTime() - startTime);
+
+            if (sleep <= 0)
+                return true;
+
+            LockSupport.parkNanos(this, sleep);
+        }
+
+        return false;
+    }
+
+    private void addNew() {
+        for (int i = 0; i < MAX_ADDED_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+
+            if (timeout == null)
+                return;
+
+            if (timeout.state.get() != Timeout.ARMED)
+                continue; // cancelled before it got to a bucket
+
+            // it runs at the end of the tick its deadline falls in, or of the
+            // current one if that passed already
+            long dueTick = timeout.deadline / tickNanos;
+
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /** A task that was scheduled, until it runs or is cancelled. */
+    public final class Timeout {
+        private static final int ARMED = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // relative to startTime
+        private final AtomicInteger state = new AtomicInteger(ARMED);
+
+        // the timer thread's own
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keep the task from running.
+         *
+         * @return false if it already ran (or is running), or was cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ARMED, CANCELLED))
+                return false;
+
+            cancelled.add(this); // the timer thread takes it out of its bucket
+            return true;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ARMED, EXPIRED))
+                return;
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // the timer keeps going for everyone else
+            }
+        }
+    }
+
+    /** The timeouts that are due in one tick of the ring, a doubly linked list. */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null)
+                timeout.previous.next = timeout.next;
+            else
+                head = timeout.next;
+
+            if (timeout.next != null)
+                timeout.next.previous = timeout.previous;
+            else
+                tail = timeout.previous;
+
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Run the timeouts that are due in this round, and count a round for
+         * the others.
+         */
+        void expire() {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; // 8k
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    private final BidiMessagingProtocol<T> protocol;
+    private final MessageEncoderDecoder<T> encdec;
+    private final OutboundQueue<T> outbound;
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false); // OP_WRITE was asked for
+    private final SocketChannel chan;
+    private final Reactor<T> reactor;
+    private final int id;
+    private final Connections<T> connections;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public NonBlockingConnectionHandler(int id, Connections<T> connections, SocketChannel chan,
+            MessageEncoderDecoder<T> reader, BidiMessagingProtocol<T> protocol, Reactor<T> reactor,
+            OutboundPolicy<T> outboundPolicy) {
+        this.id = id;
+        this.connections = connections;
+        this.chan = chan;
+        this.encdec = reader;
+        this.protocol = protocol;
+        this.reactor = reactor;
+        this.outbound = new OutboundQueue<>(outboundPolicy);
+    }
+
+    /**
+     * Register the handler in the connections hub and start its protocol.
+     * Called by the selector thread before any byte of this client is read.
+     */
+    public void start() {
+        connections.connect(id, this);
+        protocol.start(id, connections);
+    }
+
+    /**
+     * Read whatever is available on the channel.
+     *
+     * @return a task that processes the messages that were read (to be executed
+     *         by the pool), or null if there is nothing to process.
+     */
+    public Runnable continueRead() {
+        ByteBuffer buf = leaseBuffer();
+
+        boolean success = false;
+
+        try {
+            success = chan.read(buf) != -1;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        if (success) {
+            buf.flip();
+            ServerMetrics.INSTANCE.bytesRead(buf.remaining());
+
+            return () -> {
+                try {
+                    encdec.decode(buf, protocol::process);
+                } finally {
+                    releaseBuffer(buf);
+                }
+            };
+        } else {
+            releaseBuffer(buf);
+            close();
+
+            return null;
+        }
+    }
+
+    /** Write as much of the pending messages as the channel accepts. */
+    public void continueWrite() {
+        try {
+            if (!outbound.writeTo(chan))
+                return; // the socket is full, wait for the next OP_WRITE
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
+        }
+
+        if (protocol.shouldTerminate() && outbound.isEmpty()) {
+            close();
+            return;
+        }
+
+        // stop waiting for OP_WRITE, unless a message came in the meantime
+        reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        writeRequested.set(false);
+
+        if (!outbound.isEmpty())
+            requestWrite();
+    }
+
+    public boolean isClosed() {
+        return !chan.isOpen();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        ServerMetrics.INSTANCE.connectionClosed();
+
+        try {
+            connections.disconnect(id);
+            outbound.close();
+            chan.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        // the selector thread is the writer, the queue is its own
+        reactor.runOnSelector(outbound::discard);
+
+        // after any message of this client that is still being processed
+        reactor.execute(this, protocol::onClose);
+    }
+
+    @Override
+    public void send(T msg) {
+        if (msg == null)
+            return;
+
+        // the queue keeps the order of the messages, the reactor does the writing
+        if (!outbound.add(msg, ByteBuffer.wrap(encdec.encode(msg))))
+            close(); // the client does not read what we send
+        else
+            requestWrite();
+    }
+
+    @Override
+    public void send(T header, FileChannel file, long position, long count) {
+        // header and region are one entry so no other message gets in between.
+        if (!outbound.add(header, ByteBuffer.wrap(encdec.encode(header)), file, position, count))
+            close();
+        else
+            requestWrite();
+    }
+
+    @Override
+    public void closeAfterSent(Closeable resource) {
+        outbound.closeAfterSent(resource);
+        requestWrite();
+    }
+
+    /**
+     * Ask the selector to tell when the channel is writable, once for all the
+     * messages that are queued until the next write (waking the selector up is
+     * a system call).
+     */
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true))
+            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private static ByteBuffer leaseBuffer() {
+        ByteBuffer buff = BUFFER_POOL.poll();
+
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        }
+
+        buff.clear();
+
+        return buff;
+    }
+
+    private static void releaseBuffer(ByteBuffer buff) {
+        BUFFER_POOL.add(buff);
+    }
+}
@@ -0,0 +1,70 @@
+package bgu.spl.net.srv;
+
+import java.util.function.Predicate;
+
+/**
+ * How many messages may wait to be written to a single client, and what to do
+ * when a client does not read them fast enough.
+ * When the queue of a client is full, droppable messages (e.g. notifications
+ * that can be missed) are dropped, and any other message disconnects the
+ * client, since it can't keep up. A client that keeps missing droppable
+ * messages (too many in a row) is disconnected as well.
+ *
+ * @param <T> the message type.
+ */
+public class OutboundPolicy<T> {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final Predicate<? super T> droppable;
+    private final int maxDropped;
+
+    /**
+     * @param capacity  the maximal number of messages that wait for a client.
+     * @param droppable the messages that may be dropped when the queue is full.
+     */
+    public OutboundPolicy(int capacity, Predicate<? super T> droppable) {
+        this(capacity, droppable, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity   the maximal number of messages that wait for a client.
+     * @param droppable  the messages that may be dropped when the queue is full.
+     * @param maxDropped the number of messages that may be dropped in a row
+     *                   (with no room freed in between) before the client is
+     *                   disconnected.
+     */
+    public OutboundPolicy(int capacity, Predicate<? super T> droppable, int maxDropped) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.capacity = capacity;
+        this.droppable = droppable;
+        this.maxDropped = maxDropped;
+    }
+
+    /**
+     * @param <T> the message type.
+     * @return a policy that never drops or disconnects.
+     */
+    public static <T> OutboundPolicy<T> unbounded() {
+        return new OutboundPolicy<>(Integer.MAX_VALUE, message -> false);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxDropped() {
+        return maxDropped;
+    }
+
+    /**
+     * @param message a message that does not fit in the queue.
+     * @return true iff the message should be dropped, false if the client
+     *         should be disconnected.
+     */
+    public boolean isDroppable(T message) {
+        return droppable.test(message);
+    }
+}
@@ -0,0 +1,296 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages that wait to be written to one client.
+ * Any thread may add messages, a single writer (the selector thread, or the
+ * writer thread of a blocking connection) writes them. The writer takes all
+ * the waiting messages at once and writes them with a single gathering write,
+ * so a burst of small packets costs one system call instead of one each.
+ * A file whose regions are queued must stay open until they are written, so
+ * the sender closes it through closeAfterSent instead of closing it itself.
+ *
+ * @param <T> the message type.
+ */
+class OutboundQueue<T> {
+    private static final int MAX_GATHER = 64; // buffers per write
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final OutboundPolicy<T> policy;
+    private final ReentrantLock lock = new ReentrantLock(); // guards queued and closed
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<OutboundMessage> queued = new ArrayDeque<>();
+    private boolean closed = false;
+    private boolean discarded = false; // the writer is done, nothing queued will be written
+    private int droppedInARow = 0;
+
+    // the writer's own: taken from the queue but not completely written yet
+    private final ArrayDeque<OutboundMessage> batch = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    OutboundQueue(OutboundPolicy<T> policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a message.
+     *
+     * @param message the message.
+     * @param encoded the encoded message.
+     * @return false iff the queue is full and the client should be disconnected.
+     */
+    boolean add(T message, ByteBuffer encoded) {
+        return add(message, new OutboundMessage(encoded, null, 0, 0));
+    }
+
+    /**
+     * Queue a message that is followed by a region of a file.
+     *
+     * @param header   the message.
+     * @param encoded  the encoded message.
+     * @param file     the file to send from.
+     * @param position where the region starts in the file.
+     * @param count    the size of the region.
+     * @return false iff the queue is full and the client should be disconnected.
+     */
+    boolean add(T header, ByteBuffer encoded, FileChannel file, long position, long count) {
+        return add(header, new OutboundMessage(encoded, file, position, count));
+    }
+
+    /**
+     * Close a resource once everything that was queued before it was written
+     * (or discarded). Not limited by the capacity, it writes nothing.
+     *
+     * @param resource e.g. the file of queued regions.
+     */
+    void closeAfterSent(Closeable resource) {
+        lock.lock();
+
+        try {
+            if (!discarded) {
+                queued.add(new OutboundMessage(EMPTY, null, 0, 0, resource));
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        closeQuietly(resource); // nobody would get to it
+    }
+
+    private boolean add(T message, OutboundMessage outbound) {
+        lock.lock();
+
+        try {
+            if (closed)
+                return true; // the client is leaving anyway
+
+            if (queued.size() >= policy.getCapacity()) {
+                if (policy.isDroppable(message) && ++droppedInARow <= policy.getMaxDropped()) {
+                    ServerMetrics.INSTANCE.messageDropped();
+                    return true;
+                }
+
+                ServerMetrics.INSTANCE.slowClientDisconnected();
+                return false;
+            }
+
+            droppedInARow = 0; // there was room, so the client reads
+            queued.add(outbound);
+            notEmpty.signal();
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true iff there is nothing left to write.
+     */
+    boolean isEmpty() {
+        lock.lock();
+
+        try {
+            return queued.isEmpty() && batch.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until there is something to write. Writer only.
+     *
+     * @return false iff the queue was closed and everything was written.
+     */
+    boolean await() throws InterruptedException {
+        lock.lock();
+
+        try {
+            while (queued.isEmpty() && batch.isEmpty() && !closed)
+                notEmpty.await();
+
+            return !(queued.isEmpty() && batch.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting messages. The ones that were already queued may still be
+     * written.
+     */
+    void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop whatever was not written, once the writer stops for good, closing
+     * the resources that wait for it. Writer only.
+     */
+    void discard() {
+        lock.lock();
+
+        try {
+            closed = true;
+            discarded = true;
+            batch.addAll(queued);
+            queued.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (OutboundMessage message : batch)
+            closeQuietly(message.resource);
+
+        batch.clear();
+    }
+
+    /**
+     * Write as much as the channel accepts. Writer only.
+     *
+     * @param chan the client channel.
+     * @return true iff everything was written.
+     */
+    boolean writeTo(SocketChannel chan) throws IOException {
+        while (true) {
+            takeQueued();
+
+            if (batch.isEmpty())
+                return true;
+
+            // the buffers of the first messages, up to a file region that has to follow its buffer
+            int buffers = 0;
+
+            for (OutboundMessage message : batch) {
+                gather[buffers++] = message.buffer;
+
+                if (message.file != null || buffers == MAX_GATHER)
+                    break;
+            }
+
+            ServerMetrics.INSTANCE.bytesWritten(chan.write(gather, 0, buffers));
+            Arrays.fill(gather, 0, buffers, null);
+
+            while (!batch.isEmpty() && !batch.peek().buffer.hasRemaining()) {
+                if (!batch.peek().transferRegion(chan))
+                    return false;
+
+                closeQuietly(batch.remove().resource);
+            }
+
+            if (!batch.isEmpty())
+                return false; // the socket is full
+        }
+    }
+
+    private void takeQueued() {
+        lock.lock();
+
+        try {
+            while (batch.size() < MAX_GATHER && !queued.isEmpty())
+                batch.add(queued.remove());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        if (resource == null)
+            return;
+
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * An encoded message, optionally followed by a region of a file, or a
+     * resource to close once the messages before it were written.
+     */
+    private static class OutboundMessage {
+        private final ByteBuffer buffer;
+        private final FileChannel file;
+        private final Closeable resource; // null unless this entry only closes it
+        private long position;
+        private long count;
+
+        OutboundMessage(ByteBuffer buffer, FileChannel file, long position, long count) {
+            this(buffer, file, position, count, null);
+        }
+
+        OutboundMessage(ByteBuffer buffer, FileChannel file, long position, long count, Closeable resource) {
+            this.buffer = buffer;
+            this.file = file;
+            this.position = position;
+            this.count = count;
+            this.resource = resource;
+        }
+
+        /**
+         * Write the file region, once the buffer was written.
+         *
+         * @return true iff the whole region was written.
+         * @throws EOFException if the file got shorter than the region. The
+         *                      buffer announced the size of the region, the
+         *                      client can't tell where the next message starts,
+         *                      so the connection must be closed.
+         */
+        boolean transferRegion(SocketChannel chan) throws IOException {
+            while (count > 0) {
+                long sent = file.transferTo(position, count, chan);
+                ServerMetrics.INSTANCE.bytesWritten(sent);
+
+                if (sent == 0 && position >= file.size())
+                    throw new EOFException("the file ended " + count + " bytes before its region");
+
+                if (sent == 0)
+                    return false; // the socket is full
+
+                position += sent;
+                count -= sent;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.impl.tftp.ConnectionsImpl;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class Reactor<T> implements Server<T> {
+
+    private final int port;
+    private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
+    private final Supplier<MessageEncoderDecoder<T>> readerFactory;
+    private final ActorThreadPool pool;
+    private final Connections<T> hub;
+    private final OutboundPolicy<T> outboundPolicy;
+    private Selector selector;
+    private Thread selectorThread;
+    private final AtomicInteger nextId = new AtomicInteger(); // connection ids
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+
+        this(numThreads, port, protocolFactory, readerFactory, OutboundPolicy.unbounded());
+    }
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            OutboundPolicy<T> outboundPolicy) {
+
+        this.outboundPolicy = outboundPolicy;
+        this.pool = new ActorThreadPool(numThreads);
+        this.port = port;
+        this.protocolFactory = protocolFactory;
+        this.readerFactory = readerFactory;
+        this.hub = new ConnectionsImpl<>();
+    }
+
+    @Override
+    public void serve() {
+        selectorThread = Thread.currentThread();
+
+        try (Selector selector = Selector.open();
+                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            this.selector = selector; // just to be able to close
+
+            serverSock.bind(new InetSocketAddress(port));
+            serverSock.configureBlocking(false);
+            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+
+            System.out.println("Server started");
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        handleAccept(serverSock, selector);
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); // clear the selected keys set so that we can know about new events
+            }
+        } catch (ClosedSelectorException ignored) {
+            // do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            // this is an error
+            ex.printStackTrace();
+        }
+
+        System.out.println("server closed!!!");
+        pool.shutdown();
+    }
+
+    /**
+     * Change the operations the selector waits for on a channel. May be called
+     * from any thread.
+     *
+     * @param chan the channel of a connection.
+     * @param ops  the new interest set.
+     */
+    void updateInterestedOps(SocketChannel chan, int ops) {
+        final SelectionKey key = chan.keyFor(selector);
+
+        if (key == null || !key.isValid())
+            return;
+
+        runOnSelector(() -> {
+            if (key.isValid())
+                key.interestOps(ops);
+        });
+    }
+
+    /**
+     * Run a task on the selector thread. May be called from any thread.
+     *
+     * @param task the task.
+     */
+    void runOnSelector(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task of a connection on the pool, after the tasks that were already
+     * submitted for it.
+     *
+     * @param handler the connection the task belongs to.
+     * @param task    the task.
+     */
+    void execute(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler, task);
+    }
+
+    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+        SocketChannel clientChan = serverChan.accept();
+
+        if (clientChan == null)
+            return;
+
+        clientChan.configureBlocking(false);
+        // a DATA header and its file region are two writes, don't let Nagle hold the second
+        clientChan.socket().setTcpNoDelay(true);
+        ServerMetrics.INSTANCE.connectionOpened();
+
+        System.out.println("Client connected!");
+
+        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+                nextId.getAndIncrement(),
+                hub,
+                clientChan,
+                readerFactory.get(),
+                protocolFactory.get(),
+                this,
+                outboundPolicy);
+
+        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        handler.start();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+
+            if (task != null) {
+                // tasks of the same handler run one after the other, keeping the message order
+                pool.submit(handler, task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (selector != null)
+            selector.close();
+    }
+}
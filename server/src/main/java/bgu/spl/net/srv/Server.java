@@ -26,7 +26,22 @@ public interface Server<T> extends Closeable {
             Supplier<BidiMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+        return threadPerClient(port, protocolFactory, encoderDecoderFactory, OutboundPolicy.unbounded());
+    }
+
+    /**
+     * Same as threadPerClient, with a limit on the messages that may wait for a
+     * client.
+     * 
+     * @param outboundPolicy What to do with clients that don't read their messages
+     */
+    public static <T> Server<T> threadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            OutboundPolicy<T> outboundPolicy) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, outboundPolicy) {
             @Override
             protected void execute(BlockingConnectionHandler<T> handler) {
                 new Thread(handler).start();
@@ -34,4 +49,78 @@ public interface Server<T> extends Closeable {
         };
 
     }
+
+    /**
+     * This function returns a new instance of a thread per client pattern server
+     * that runs every client on a virtual thread. The blocking handlers stay the
+     * same, but an idle client only costs a small heap object instead of a
+     * platform thread stack.
+     * 
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return virtualThreadPerClient(port, protocolFactory, encoderDecoderFactory, OutboundPolicy.unbounded());
+    }
+
+    /**
+     * Same as virtualThreadPerClient, with a limit on the messages that may
+     * wait for a client.
+     * 
+     * @param outboundPolicy What to do with clients that don't read their messages
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            OutboundPolicy<T> outboundPolicy) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, outboundPolicy) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                Thread.ofVirtual().start(handler);
+            }
+        };
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * 
+     * @param nThreads              Number of threads available for protocol processing
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nThreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new Reactor<T>(nThreads, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * Same as reactor, with a limit on the messages that may wait for a client.
+     * 
+     * @param outboundPolicy What to do with clients that don't read their messages
+     */
+    public static <T> Server<T> reactor(
+            int nThreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            OutboundPolicy<T> outboundPolicy) {
+
+        return new Reactor<T>(nThreads, port, protocolFactory, encoderDecoderFactory, outboundPolicy);
+    }
 }
@@ -0,0 +1,96 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the transport: connections, bytes and messages, shared by all
+ * the servers of the process. Any thread may update them without blocking.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder slowClientsDisconnected = new LongAdder();
+
+    private ServerMetrics() {
+    }
+
+    public void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void messageSent() {
+        messagesSent.increment();
+    }
+
+    /** A message did not fit in the queue of a client and was dropped. */
+    public void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    /** A client was disconnected because it does not read its messages. */
+    public void slowClientDisconnected() {
+        slowClientsDisconnected.increment();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public long getSlowClientsDisconnected() {
+        return slowClientsDisconnected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "connections " + getActiveConnections() + " active, " + getAcceptedConnections() + " accepted"
+                + ", bytes in " + getBytesIn() + ", bytes out " + getBytesOut()
+                + ", messages sent " + getMessagesSent() + ", dropped " + getDroppedMessages()
+                + ", slow clients disconnected " + getSlowClientsDisconnected();
+    }
+}
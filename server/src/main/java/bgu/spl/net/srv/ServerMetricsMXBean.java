@@ -0,0 +1,20 @@
+package bgu.spl.net.srv;
+
+/**
+ * The JMX view of ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+    long getAcceptedConnections();
+
+    long getActiveConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesSent();
+
+    long getDroppedMessages();
+
+    long getSlowClientsDisconnected();
+}